@@ -118,6 +118,16 @@ public class AutoGrader {
 	}	
     }
 
+    int getIntegerArgument(String key, int defaultValue) {
+	return testArgs.containsKey(key) ? getIntegerArgument(key) :
+	    defaultValue;
+    }
+
+    boolean getBooleanArgument(String key, boolean defaultValue) {
+	return testArgs.containsKey(key) ? getBooleanArgument(key) :
+	    defaultValue;
+    }
+
     long getTime() {
 	return privilege.stats.totalTicks;
     }
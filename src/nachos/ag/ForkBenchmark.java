@@ -0,0 +1,65 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that measures how fast the kernel can create and finish
+ * threads. Instead of running the kernel's self test, it forks a large
+ * number of threads with <tt>KThread.forkAll()</tt>, each of which yields a
+ * few times, and joins them all with <tt>KThread.joinAll()</tt>.
+ *
+ * <p>
+ * The number of threads that may exist at once is limited by
+ * <tt>TCB.maxThreads</tt>, so raise it in the configuration file, and
+ * consider lowering <tt>TCB.stackSize</tt>, when forking many threads.
+ *
+ * <p>
+ * Select it with <tt>-- nachos.ag.ForkBenchmark</tt>. The <tt>-#</tt>
+ * arguments are:
+ *
+ * <ul>
+ * <li><tt>threads</tt>: the number of threads to fork (default 50000).
+ * <li><tt>yields</tt>: the number of times each thread yields before it
+ * finishes (default 0).
+ * </ul>
+ */
+public class ForkBenchmark extends AutoGrader {
+    /**
+     * Allocate a new fork benchmark.
+     */
+    public ForkBenchmark() {
+    }
+
+    void run() {
+	final int numThreads = getIntegerArgument("threads", 50000);
+	final int numYields = getIntegerArgument("yields", 0);
+
+	System.out.println("fork benchmark: " + numThreads + " threads, " +
+			   numYields + " yields each");
+
+	long startTime = System.currentTimeMillis();
+
+	Runnable[] targets = new Runnable[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    targets[i] = new Runnable() {
+		    public void run() {
+			for (int j=0; j<numYields; j++)
+			    KThread.yield();
+		    }
+		};
+	}
+
+	KThread.joinAll(KThread.forkAll(targets));
+
+	long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	System.out.println("fork benchmark: " + numThreads + " threads in " +
+			   elapsed + " ms (" +
+			   ((long) numThreads * 1000 / elapsed) +
+			   " threads/second)");
+	privilege.stats.print();
+	privilege.exit(0);
+    }
+}
@@ -0,0 +1,100 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * An autograder that measures how fast the interrupt controller can schedule
+ * and deliver interrupts with many of them pending. Instead of running the
+ * kernel, it keeps a fixed number of interrupts pending, each of which
+ * reschedules itself when it is delivered, and advances the time one user
+ * tick at a time until enough have been delivered.
+ *
+ * <p>
+ * Half of the interrupts use one of a few fixed delays, like the console,
+ * network, and elevator devices, and the other half use a random delay.
+ *
+ * <p>
+ * Select it with <tt>-- nachos.ag.InterruptBenchmark</tt>. The <tt>-#</tt>
+ * arguments are:
+ *
+ * <ul>
+ * <li><tt>pending</tt>: the number of interrupts to keep pending (default
+ * 4096).
+ * <li><tt>interrupts</tt>: the number of interrupts to deliver (default
+ * 5000000).
+ * </ul>
+ */
+public class InterruptBenchmark extends AutoGrader {
+    /**
+     * Allocate a new interrupt benchmark.
+     */
+    public InterruptBenchmark() {
+    }
+
+    void run() {
+	int numPending = getIntegerArgument("pending", 4096);
+	numInterrupts = getIntegerArgument("interrupts", 5000000);
+
+	for (int i=0; i<numPending; i++) {
+	    if (i%2 == 0)
+		new Event(fixedDelays[(i/2) % fixedDelays.length]);
+	    else
+		new Event(0);
+	}
+
+	System.out.println("interrupt benchmark: " + numPending +
+			   " pending, " + numInterrupts + " interrupts");
+
+	startTime = System.currentTimeMillis();
+	while (true)
+	    privilege.interrupt.tick(false);
+    }
+
+    private void delivered() {
+	if (++interrupts == numInterrupts) {
+	    long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	    System.out.println("interrupt benchmark: " + interrupts +
+			       " interrupts in " + elapsed + " ms (" +
+			       (interrupts * 1000 / elapsed) +
+			       " interrupts/second)");
+	    privilege.stats.print();
+	    privilege.exit(0);
+	}
+    }
+
+    private class Event implements Runnable {
+	/**
+	 * Schedule a new self-rescheduling interrupt.
+	 *
+	 * @param	delay	the fixed delay to reschedule with, or 0 to use
+	 *			a random delay each time.
+	 */
+	Event(int delay) {
+	    this.delay = delay;
+	    schedule();
+	}
+
+	public void run() {
+	    delivered();
+	    schedule();
+	}
+
+	private void schedule() {
+	    int when = (delay != 0) ? delay : 1 + Lib.random(maxRandomDelay);
+	    privilege.interrupt.schedule(when, "benchmark", this);
+	}
+
+	private int delay;
+    }
+
+    private int numInterrupts;
+    private long interrupts = 0;
+    private long startTime;
+
+    private static final int[] fixedDelays = {
+	Stats.ConsoleTime, Stats.NetworkTime, Stats.ElevatorTicks
+    };
+    private static final int maxRandomDelay = 4000;
+}
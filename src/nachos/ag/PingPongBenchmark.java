@@ -0,0 +1,59 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that measures how fast the kernel can context switch between
+ * threads. Like the ping test in <tt>KThread.selfTest()</tt>, it forks a
+ * second thread, and the two threads take turns yielding to each other, so
+ * that every yield is a context switch.
+ *
+ * <p>
+ * Select it with <tt>-- nachos.ag.PingPongBenchmark</tt>. The <tt>-#</tt>
+ * arguments are:
+ *
+ * <ul>
+ * <li><tt>yields</tt>: the number of times each thread yields (default
+ * 100000).
+ * </ul>
+ */
+public class PingPongBenchmark extends AutoGrader {
+    /**
+     * Allocate a new ping-pong benchmark.
+     */
+    public PingPongBenchmark() {
+    }
+
+    void run() {
+	numYields = getIntegerArgument("yields", 100000);
+
+	System.out.println("ping-pong benchmark: " + numYields +
+			   " yields each");
+
+	long startTime = System.currentTimeMillis();
+
+	KThread ping = new KThread(new PingTest()).setName("ping");
+	ping.fork();
+	new PingTest().run();
+
+	long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+	long switches = privilege.stats.numContextSwitches;
+
+	System.out.println("ping-pong benchmark: " + switches +
+			   " context switches in " + elapsed + " ms (" +
+			   (switches * 1000 / elapsed) + " switches/second)");
+	privilege.stats.print();
+	privilege.exit(0);
+    }
+
+    private class PingTest implements Runnable {
+	public void run() {
+	    for (int i=0; i<numYields; i++)
+		KThread.yield();
+	}
+    }
+
+    private int numYields;
+}
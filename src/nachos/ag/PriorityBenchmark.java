@@ -0,0 +1,94 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that measures how fast the scheduler can pick threads and
+ * donate priority with many threads contending for nested locks. Instead of
+ * running the kernel's self test, it forks a large number of threads with
+ * priorities spread over the valid range, each of which acquires a suffix of
+ * a fixed sequence of locks in order, yields while holding them all, and
+ * releases them. Threads holding one lock while waiting for the next form
+ * chains that priority is donated along.
+ *
+ * <p>
+ * Run it with the scheduler under test as <tt>ThreadedKernel.scheduler</tt>.
+ * The number of threads that may exist at once is limited by
+ * <tt>TCB.maxThreads</tt>, so raise it in the configuration file, and
+ * consider lowering <tt>TCB.stackSize</tt>, when forking many threads.
+ *
+ * <p>
+ * Select it with <tt>-- nachos.ag.PriorityBenchmark</tt>. The <tt>-#</tt>
+ * arguments are:
+ *
+ * <ul>
+ * <li><tt>threads</tt>: the number of threads to fork (default 10000).
+ * <li><tt>locks</tt>: the number of nested locks (default 8).
+ * <li><tt>rounds</tt>: the number of times each thread acquires its locks
+ * (default 1).
+ * </ul>
+ */
+public class PriorityBenchmark extends AutoGrader {
+    /**
+     * Allocate a new priority benchmark.
+     */
+    public PriorityBenchmark() {
+    }
+
+    void run() {
+	final int numThreads = getIntegerArgument("threads", 10000);
+	final int numLocks = getIntegerArgument("locks", 8);
+	final int numRounds = getIntegerArgument("rounds", 1);
+
+	System.out.println("priority benchmark: " + numThreads + " threads, " +
+			   numLocks + " locks, " + numRounds + " rounds");
+
+	final Lock[] locks = new Lock[numLocks];
+	for (int i=0; i<numLocks; i++)
+	    locks[i] = new Lock();
+
+	long startTime = System.currentTimeMillis();
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int first = i % numLocks;
+
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numRounds; j++) {
+			    for (int k=first; k<numLocks; k++)
+				locks[k].acquire();
+
+			    KThread.yield();
+
+			    for (int k=numLocks-1; k>=first; k--)
+				locks[k].release();
+			}
+		    }
+		});
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i],
+						 1 + i % maxPriority);
+	    Machine.interrupt().restore(intStatus);
+
+	    threads[i].fork();
+	}
+
+	KThread.joinAll(threads);
+
+	long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	System.out.println("priority benchmark: " + numThreads + " threads in " +
+			   elapsed + " ms (" +
+			   ((long) numThreads * numRounds * 1000 / elapsed) +
+			   " lock sequences/second)");
+	privilege.stats.print();
+	privilege.exit(0);
+    }
+
+    /** The highest priority to give a thread, valid for any scheduler. */
+    private static final int maxPriority = 7;
+}
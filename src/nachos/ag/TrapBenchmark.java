@@ -0,0 +1,86 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * An autograder that measures how fast the processor can take user
+ * exceptions. Instead of running the kernel's shell program, it maps a single
+ * page containing one instruction that always traps, and runs the processor
+ * on it. The exception is hidden from the kernel and the PC is never
+ * advanced, so the same instruction traps again and again, exercising only
+ * the fetch, trap, and time-advance paths of the simulated machine.
+ *
+ * <p>
+ * Select it with <tt>-- nachos.ag.TrapBenchmark</tt>. The <tt>-#</tt>
+ * arguments are:
+ *
+ * <ul>
+ * <li><tt>traps</tt>: the number of exceptions to take (default 1000000).
+ * <li><tt>fault</tt>: <tt>true</tt> to take page faults (or TLB misses) with
+ * a load from an unmapped page, <tt>false</tt> to take syscalls (the
+ * default).
+ * </ul>
+ */
+public class TrapBenchmark extends AutoGrader {
+    /**
+     * Allocate a new trap benchmark.
+     */
+    public TrapBenchmark() {
+    }
+
+    void run() {
+	Processor processor = Machine.processor();
+	Lib.assertTrue(processor != null, "trap benchmark needs a processor");
+
+	numTraps = getIntegerArgument("traps", 1000000);
+	boolean fault = getBooleanArgument("fault", false);
+
+	byte[] instruction = Lib.bytesFromInt(fault ? loadUnmapped : syscall);
+	processor.writeFrame(0, 0, instruction, 0, instruction.length);
+
+	TranslationEntry entry =
+	    new TranslationEntry(0, 0, true, false, false, false);
+	if (processor.hasTLB())
+	    processor.writeTLBEntry(0, entry);
+	else
+	    processor.setPageTable(new TranslationEntry[] { entry });
+
+	processor.setExceptionHandler(new Runnable() {
+		public void run() { }
+	    });
+	processor.writeRegister(Processor.regPC, 0);
+
+	System.out.println("trap benchmark: " + numTraps + " " +
+			   (fault ? "faults" : "syscalls"));
+
+	startTime = System.currentTimeMillis();
+	processor.run();
+    }
+
+    public boolean exceptionHandler(Privilege privilege) {
+	super.exceptionHandler(privilege);
+
+	if (++traps == numTraps) {
+	    long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	    System.out.println("trap benchmark: " + traps + " traps in " +
+			       elapsed + " ms (" +
+			       (traps * 1000 / elapsed) + " traps/second)");
+	    privilege.stats.print();
+	    privilege.exit(0);
+	}
+
+	// keep the kernel out of it, and leave the PC on the trap
+	return false;
+    }
+
+    private int numTraps;
+    private long traps = 0;
+    private long startTime;
+
+    /** <tt>syscall</tt> */
+    private static final int syscall = 0x0000000C;
+    /** <tt>lw $t0, 0x400($zero)</tt>, one page past the only mapping. */
+    private static final int loadUnmapped = 0x8C080400;
+}
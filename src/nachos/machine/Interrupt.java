@@ -4,9 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +55,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	for (int slot=initialSlots-1; slot>=0; slot--)
+	    freeSlots[numFree++] = slot;
     }
 
     /**
@@ -102,6 +105,40 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Enter a critical section, disabling interrupts. Critical sections nest:
+     * only entering the outermost one disables interrupts, and only leaving
+     * it restores them to the status they had when it was entered. So this
+     * has the same effect as a matching <tt>disable()</tt> and
+     * <tt>restore()</tt>, including advancing the time when leaving turns
+     * interrupts back on, but the caller need not keep the old status.
+     *
+     * <p>
+     * The nesting depth belongs to the current thread. It is saved and
+     * restored by <tt>TCB.contextSwitch()</tt>, so a thread may sleep inside
+     * a critical section.
+     */
+    public void enterCritical() {
+	if (criticalDepth++ == 0) {
+	    criticalStatus = enabled;
+	    enabled = false;
+	}
+    }
+
+    /**
+     * Leave a critical section entered with <tt>enterCritical()</tt>. If this
+     * is the outermost critical section, restore interrupts to the status
+     * they had when it was entered.
+     */
+    public void leaveCritical() {
+	Lib.assertTrue(criticalDepth > 0);
+
+	if (--criticalDepth == 0 && criticalStatus) {
+	    enabled = true;
+	    tick(true);
+	}
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -120,29 +157,90 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the next pending interrupt and deliver
+     * it. This has the same effect as the idle thread yielding over and over,
+     * each time advancing the time by one kernel tick, until the interrupt is
+     * due, but without running the idle thread in between. If no interrupt is
+     * pending, the time is advanced by a single kernel tick.
+     *
+     * <p>
+     * Interrupts must be enabled. The caller must make sure that nothing else
+     * would have run before the interrupt is due.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	long time = privilege.stats.totalTicks;
+	long count = 1;
+
+	// keep the debug trace one tick at a time
+	if (nextDue != Long.MAX_VALUE && nextDue > time && !Lib.test(dbgInt))
+	    count = Math.min((nextDue - time + Stats.KernelTick - 1) /
+			     Stats.KernelTick, maxIdleTicks);
+
+	tick(true, (int) count);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    Lib.debug(dbgInt,
+		      "Scheduling the " + type +
+		      " interrupt handler at time = " + time);
+
+	int slot = allocateSlot();
+	slotTimes[slot] = time;
+	slotIds[slot] = numPendingInterruptsCreated++;
+	slotTypes[slot] = type;
+	slotHandlers[slot] = handler;
+
+	heap[numPending] = slot;
+	siftUp(numPending++);
+	nextDue = slotTimes[heap[0]];
+    }
+
+    /**
+     * Remove the earliest pending interrupt with the specified handler. Only
+     * devices schedule interrupts, and each has at most a few pending, so the
+     * heap is searched linearly.
+     */
+    private boolean cancel(Runnable handler) {
+	for (int i=0; i<numPending; i++) {
+	    int slot = heap[i];
+	    if (slotHandlers[slot] == handler) {
+		if (Lib.test(dbgInt))
+		    Lib.debug(dbgInt,
+			      "Cancelling the " + slotTypes[slot] +
+			      " interrupt handler at time = " +
+			      slotTimes[slot]);
+
+		removeAt(i);
+		freeSlot(slot);
+		return true;
+	    }
+	}
 
-	pending.add(toOccur);
+	return false;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += count * Stats.KernelTick;
+	    stats.totalTicks += count * Stats.KernelTick;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += count * Stats.UserTick;
+	    stats.totalTicks += count * Stats.UserTick;
 	}
 
 	if (Lib.test(dbgInt))
@@ -161,75 +259,223 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    int slot = heap[0];
+	    String type = slotTypes[slot];
+	    Runnable handler = slotHandlers[slot];
 
-	    Lib.assertTrue(next.time <= time);
+	    removeAt(0);
+	    freeSlot(slot);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    private long nextPendingTime() {
+	return nextDue;
+    }
+
+    /**
+     * Save the type and due time of each pending interrupt to a snapshot.
+     *
+     * @param	out	the snapshot being written.
+     */
+    void save(DataOutputStream out) throws IOException {
+	Integer[] slots = sortedSlots();
+	
+	out.writeInt(slots.length);
+	for (int i=0; i<slots.length; i++) {
+	    out.writeUTF(slotTypes[slots[i]]);
+	    out.writeLong(slotTimes[slots[i]]);
+	}
+    }
+
+    /**
+     * Restore the due times of pending interrupts from a snapshot. Handlers
+     * cannot be saved, so each saved interrupt is matched, in order, with a
+     * pending interrupt of the same type, which is rescheduled for the saved
+     * time. The snapshot is refused unless every saved interrupt has a match
+     * and every pending interrupt is matched.
+     *
+     * @param	in	the snapshot being read.
+     */
+    void restore(DataInputStream in) throws IOException {
+	Integer[] slots = sortedSlots();
+	boolean[] restored = new boolean[slots.length];
+
+	int numSaved = in.readInt();
+	Lib.assertTrue(numSaved == slots.length, "snapshot has " + numSaved +
+		       " pending interrupts, but this run has " +
+		       slots.length);
+	
+	for (int i=0; i<numSaved; i++) {
+	    String type = in.readUTF();
+	    long time = in.readLong();
+
+	    int j = 0;
+	    while (j < slots.length &&
+		   (restored[j] || !slotTypes[slots[j]].equals(type)))
+		j++;
+
+	    Lib.assertTrue(j < slots.length, "snapshot has a pending " + type +
+			   " interrupt that this run does not");
+
+	    slotTimes[slots[j]] = time;
+	    restored[j] = true;
+	}
+
+	// the times changed, so rebuild the heap
+	numPending = 0;
+	for (int j=0; j<slots.length; j++) {
+	    heap[numPending] = slots[j];
+	    siftUp(numPending++);
+	}
+	nextDue = (numPending > 0) ? slotTimes[heap[0]] : Long.MAX_VALUE;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	Integer[] slots = sortedSlots();
+	for (int i=0; i<slots.length; i++) {
+	    System.out.println("  " + slotTypes[slots[i]] +
+			       ", scheduled at " + slotTimes[slots[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Return the slots of all pending interrupts, in the order they will
+     * occur.
+     *
+     * @return	the pending slots, earliest first.
+     */
+    private Integer[] sortedSlots() {
+	Integer[] slots = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    slots[i] = heap[i];
+
+	Arrays.sort(slots, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    if (before(a, b))
+			return -1;
+		    else if (before(b, a))
+			return 1;
+		    else
+			return 0;
+		}
+	    });
+
+	return slots;
+    }
+
+    /**
+     * Test whether the interrupt in one slot occurs before the interrupt in
+     * another. Interrupts due at the same time occur in the order they were
+     * scheduled.
+     */
+    private boolean before(int a, int b) {
+	return slotTimes[a] < slotTimes[b] ||
+	    (slotTimes[a] == slotTimes[b] && slotIds[a] < slotIds[b]);
+    }
+
+    /**
+     * Move the slot at the specified heap position up until its parent occurs
+     * before it. A device that always uses the same delay schedules each
+     * interrupt after all of its earlier ones, so this usually stops at the
+     * first comparison.
+     */
+    private void siftUp(int i) {
+	int slot = heap[i];
+	
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[i] = heap[parent];
+	    i = parent;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	heap[i] = slot;
+    }
+
+    /**
+     * Remove the pending interrupt at the specified heap position, and update
+     * <tt>nextDue</tt>.
+     */
+    private void removeAt(int i) {
+	int slot = heap[--numPending];
+	if (i == numPending) {
+	    nextDue = (numPending > 0) ? slotTimes[heap[0]] : Long.MAX_VALUE;
+	    return;
+	}
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	// the last slot fills the hole, and may belong above it
+	if (i > 0 && before(slot, heap[(i-1)/2])) {
+	    heap[i] = slot;
+	    siftUp(i);
+	    nextDue = slotTimes[heap[0]];
+	    return;
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[i] = heap[child];
+	    i = child;
+	}
 
-	private long id;
+	heap[i] = slot;
+	nextDue = (numPending > 0) ? slotTimes[heap[0]] : Long.MAX_VALUE;
+    }
+
+    private int allocateSlot() {
+	if (numFree == 0) {
+	    int capacity = slotTimes.length;
+	    int newCapacity = capacity*2;
+
+	    slotTimes = Arrays.copyOf(slotTimes, newCapacity);
+	    slotIds = Arrays.copyOf(slotIds, newCapacity);
+	    slotTypes = Arrays.copyOf(slotTypes, newCapacity);
+	    slotHandlers = Arrays.copyOf(slotHandlers, newCapacity);
+	    heap = Arrays.copyOf(heap, newCapacity);
+	    freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+
+	    for (int slot=newCapacity-1; slot>=capacity; slot--)
+		freeSlots[numFree++] = slot;
+	}
+
+	return freeSlots[--numFree];
+    }
+
+    private void freeSlot(int slot) {
+	slotTypes[slot] = null;
+	slotHandlers[slot] = null;
+	freeSlots[numFree++] = slot;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +483,40 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /*
+     * Pending interrupts are kept in pooled slots, so scheduling one does not
+     * allocate. Each slot holds one interrupt's due time, scheduling order,
+     * type, and handler. The slots of pending interrupts form a binary heap
+     * ordered by before(); the rest are on the free list.
+     */
+    private long[] slotTimes = new long[initialSlots];
+    private long[] slotIds = new long[initialSlots];
+    private String[] slotTypes = new String[initialSlots];
+    private Runnable[] slotHandlers = new Runnable[initialSlots];
+    private int[] heap = new int[initialSlots];
+    private int numPending = 0;
+    private int[] freeSlots = new int[initialSlots];
+    private int numFree = 0;
+
+    /**
+     * The time the first pending interrupt is due, or <tt>Long.MAX_VALUE</tt>
+     * if none is pending.
+     */
+    private long nextDue = Long.MAX_VALUE;
+
+    /**
+     * The current thread's critical section nesting depth, and the interrupt
+     * status when it entered the outermost one. Swapped by
+     * <tt>TCB.contextSwitch()</tt>.
+     */
+    int criticalDepth = 0;
+    boolean criticalStatus;
+
+    private static final int initialSlots = 16;
+
+    /** The most kernel ticks <tt>idle()</tt> advances the time by at once. */
+    private static final int maxIdleTicks = Integer.MAX_VALUE / Stats.KernelTick;
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +525,20 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public boolean cancel(Runnable handler) {
+	    return Interrupt.this.cancel(handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long nextPendingTime() {
+	    return Interrupt.this.nextPendingTime();
+	}
     }
 }
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.Vector;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,9 +98,23 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (int i=0; i<haltHandlers.size(); i++)
+	    haltHandlers.elementAt(i).run();
+	
 	terminate();
     }
 
+    /**
+     * Add a handler to call from <tt>halt()</tt>, after the statistics have
+     * been printed, so that the kernel can print statistics of its own.
+     *
+     * @param	handler	the handler to call.
+     */
+    public static void addHaltHandler(Runnable handler) {
+	haltHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -143,6 +158,14 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -s switch");
 		    }
 		}
+		else if (arg.equals("-w")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    snapshotName = args[i++];
+		}
+		else if (arg.equals("-r")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    resumeName = args[i++];
+		}
 		else if (arg.equals("-x")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
@@ -402,6 +425,35 @@ public final class Machine {
     }
 
     private static String processClassName = null;
+
+    /**
+     * Return the name of the file to write a snapshot of the machine to,
+     * given with the <tt>-w</tt> switch. The snapshot is written once the
+     * simulated time reaches the <tt>nachos.conf</tt> key
+     * <tt>Machine.snapshotTicks</tt>, which must be set, while a user program
+     * is running.
+     *
+     * @return	the name of the snapshot file, or <tt>null</tt> if no snapshot
+     *		should be written.
+     */
+    static String getSnapshotName() {
+	return snapshotName;
+    }
+
+    /**
+     * Return the name of the snapshot to resume from, given with the
+     * <tt>-r</tt> switch. Physical memory is restored before the kernel
+     * boots, and the first user program is resumed instead of loaded.
+     *
+     * @return	the name of the snapshot file, or <tt>null</tt> to run
+     *		normally.
+     */
+    static String getResumeName() {
+	return resumeName;
+    }
+
+    private static String snapshotName = null;
+    private static String resumeName = null;
     
     private static NachosSecurityManager securityManager;
     private static Privilege privilege;
@@ -409,6 +461,7 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static Vector<Runnable> haltHandlers = new Vector<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -433,6 +486,14 @@ public final class Machine {
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
 	"\n" +
+	"\t-w <snapshot file>\n" +
+	"\t\tWrite a snapshot of the machine while a user program runs,\n" +
+	"\t\tonce the time reaches Machine.snapshotTicks (required).\n" +
+	"\n" +
+	"\t-r <snapshot file>\n" +
+	"\t\tResume the first user program from a snapshot written with\n" +
+	"\t\t-w, instead of running it from the start.\n" +
+	"\n" +
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
 	"\t\tinstead of the value of the configuration variable\n" +
@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Vector;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +26,12 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ *
+ * <p>
+ * By default, <tt>run()</tt> interprets one instruction at a time. Setting
+ * <tt>Processor.translateBlocks</tt> to <tt>true</tt> makes it execute user
+ * code as translated basic blocks instead, which is faster for compute-bound
+ * programs and gives the same results.
  */
 public final class Processor {
     /**
@@ -45,7 +59,12 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	frames = new ByteBuffer[numPhysPages];
+	offHeapMemory = Config.getBoolean("Processor.offHeapMemory", false);
+	decodedPages = new Decoded[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
+
+	translateBlocks = Config.getBoolean("Processor.translateBlocks", false);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -55,6 +74,18 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	snapshotName = Machine.getSnapshotName();
+	if (snapshotName != null) {
+	    snapshotTicks = Config.getInteger("Machine.snapshotTicks");
+	    Lib.assertTrue(snapshotTicks > 0,
+			   "Machine.snapshotTicks must be positive");
+	}
+
+	// memory is restored now, before the kernel boots
+	String resumeName = Machine.getResumeName();
+	if (resumeName != null)
+	    resume = Snapshot.open(privilege, resumeName, this);
     }
 
     /**
@@ -80,6 +111,62 @@ public final class Processor {
     public Runnable getExceptionHandler() {
 	return exceptionHandler;
     }
+
+    /**
+     * The state a kernel keeps for a user program, such as its page table,
+     * that must be saved with a snapshot of the machine for the program to
+     * be resumed from it.
+     */
+    public interface ProgramState {
+	/**
+	 * Save the kernel's state for the program.
+	 *
+	 * @param	out	the stream to write the state to.
+	 */
+	public void save(DataOutputStream out) throws IOException;
+
+	/**
+	 * Replace the kernel's state for the program with the state saved by
+	 * <tt>save()</tt>. Must read everything <tt>save()</tt> wrote.
+	 *
+	 * @param	in	the stream to read the state from.
+	 */
+	public void restore(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Set the kernel's state for the program now running, which is saved if
+     * a snapshot is written while it runs. The kernel should call this
+     * whenever it gives the processor to a different program, along with
+     * <tt>setPageTable()</tt>.
+     *
+     * @param	programState	the kernel's state for the program.
+     */
+    public void setProgramState(ProgramState programState) {
+	this.programState = programState;
+    }
+
+    /**
+     * If the machine is resuming from a snapshot (see the <tt>-r</tt>
+     * switch), restore the kernel's state for the program the snapshot was
+     * written in. The kernel must call this before starting its first
+     * program, and if it returns <tt>true</tt>, start the program without
+     * loading it: its memory is already restored, and its registers will be
+     * restored when <tt>run()</tt> is called.
+     *
+     * @param	programState	the kernel's state for the program, to be
+     *				restored.
+     * @return	<tt>true</tt> if the state was restored, or <tt>false</tt> if
+     *		the program should be loaded as usual.
+     */
+    public boolean resumeProgram(ProgramState programState) {
+	if (resume == null || resumingProgram)
+	    return false;
+
+	resume.restoreProgram(programState);
+	resumingProgram = true;
+	return true;
+    }
     
     /**
      * Start executing instructions at the current PC. Never returns.
@@ -91,17 +178,235 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// a warm start continues the program from the snapshot
+	if (resume != null) {
+	    resume.restoreMachine();
+	    resume = null;
+	}
+
 	Instruction inst = new Instruction();
+
+	// tracing needs the interpreter's per-instruction output
+	boolean useBlocks = translateBlocks &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
-	    try {
-		inst.run();
+	    if (snapshotName != null &&
+		privilege.stats.totalTicks >= snapshotTicks) {
+		Lib.assertTrue(programState != null,
+			       "kernel did not set the program state");
+		Snapshot.write(privilege, snapshotName, programState);
+		snapshotName = null;
+	    }
+	    
+	    int quantum = getQuantum();
+	    int executed;
+	    
+	    if (useBlocks) {
+		executed = runBlock(quantum);
 	    }
-	    catch (MipsException e) {
-		e.handle();
+	    else {
+		executed = 0;
+		while (executed < quantum && inst.run())
+		    executed++;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    // no interrupt is due before the last of these ticks
+	    if (executed > 0)
+		privilege.interrupt.tick(false, executed);
+
+	    if (trapCause != -1) {
+		// the instruction trapped, and still counts as executed
+		handleTrap();
+		privilege.interrupt.tick(false);
+	    }
+	}
+    }
+
+    /**
+     * Save physical memory to a snapshot. Only frames that have been written
+     * are saved.
+     *
+     * @param	out	the snapshot being written.
+     */
+    void saveMemory(DataOutputStream out) throws IOException {
+	int numFrames = 0;
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (frames[ppn] != null)
+		numFrames++;
+	}
+
+	out.writeInt(numPhysPages);
+	out.writeInt(numFrames);
+
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (frames[ppn] != null) {
+		readFrame(ppn, 0, page, 0, pageSize);
+		out.writeInt(ppn);
+		out.write(page);
+	    }
+	}
+    }
+
+    /**
+     * Save the registers, including the delayed load in progress, and the
+     * TLB to a snapshot. A page table belongs to the kernel, which saves it
+     * with its program state.
+     *
+     * @param	out	the snapshot being written.
+     */
+    void saveRegisters(DataOutputStream out) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+	out.writeInt(loadTarget);
+	out.writeInt(loadValue);
+	out.writeInt(loadMask);
+
+	out.writeInt(usingTLB ? tlbSize : 0);
+	for (int i=0; usingTLB && i<tlbSize; i++) {
+	    TranslationEntry entry = translations[i];
+	    out.writeInt(entry.vpn);
+	    out.writeInt(entry.ppn);
+	    out.writeBoolean(entry.valid);
+	    out.writeBoolean(entry.readOnly);
+	    out.writeBoolean(entry.used);
+	    out.writeBoolean(entry.dirty);
+	}
+    }
+
+    /**
+     * Replace physical memory with that saved in a snapshot.
+     *
+     * @param	in	the snapshot being read.
+     */
+    void restoreMemory(DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readInt() == numPhysPages,
+		       "snapshot has a different amount of memory");
+
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    zeroFrame(ppn, 0, pageSize);
+	
+	byte[] page = new byte[pageSize];
+	for (int i=in.readInt(); i>0; i--) {
+	    int ppn = in.readInt();
+	    in.readFully(page);
+	    writeFrame(ppn, 0, page, 0, pageSize);
+	}
+    }
+
+    /**
+     * Replace the registers and the TLB with those saved in a snapshot.
+     *
+     * @param	in	the snapshot being read.
+     */
+    void restoreRegisters(DataInputStream in) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.readInt();
+	loadTarget = in.readInt();
+	loadValue = in.readInt();
+	loadMask = in.readInt();
+
+	int numTranslations = in.readInt();
+	Lib.assertTrue(numTranslations == (usingTLB ? tlbSize : 0),
+		       "snapshot has a different TLB size");
+
+	for (int i=0; i<numTranslations; i++) {
+	    TranslationEntry entry = translations[i];
+	    entry.vpn = in.readInt();
+	    entry.ppn = in.readInt();
+	    entry.valid = in.readBoolean();
+	    entry.readOnly = in.readBoolean();
+	    entry.used = in.readBoolean();
+	    entry.dirty = in.readBoolean();
+	}
+
+	numFlushes++;
+    }
+
+    /**
+     * Return the number of instructions that can run before the simulated
+     * time must be advanced: the number of user ticks until the next pending
+     * interrupt is due. Running that many instructions and then advancing the
+     * time by that many ticks at once invokes every interrupt handler at the
+     * same time and between the same two instructions as ticking after each
+     * instruction would, since user code cannot schedule an interrupt without
+     * trapping first.
+     *
+     * @return	the number of instructions to run before ticking, at least 1.
+     */
+    private int getQuantum() {
+	// interrupt debugging prints every tick
+	if (Lib.test(dbgInterrupt))
+	    return 1;
+	
+	long ticks = privilege.interrupt.nextPendingTime() -
+	    privilege.stats.totalTicks;
+	ticks = Math.min(ticks, (long) maxQuantum * Stats.UserTick);
+
+	return (int) Math.max((ticks + Stats.UserTick - 1) / Stats.UserTick, 1);
+    }
+
+    /**
+     * Execute at most <i>quantum</i> instructions of the translated basic
+     * block starting at the current PC, without advancing the simulated time.
+     * Leave the block early if control does not fall through to the next
+     * instruction in the block, or if the block's code was modified.
+     *
+     * <p>
+     * Once a block is hot, keep going: follow the block's links to the blocks
+     * its exits were last seen to reach, forming a trace that skips the
+     * translation and lookup of each successor. Links are only trusted while
+     * <tt>numFlushes</tt> has not changed since they were made, so any
+     * exception, interrupt, page table or TLB change, or code modification
+     * drops the trace back to per-block dispatch. A trace is only a chain of
+     * linked blocks; its ops are still executed one at a time, not compiled.
+     *
+     * @param	quantum	the maximum number of instructions to execute.
+     * @return	the number of instructions executed. If an instruction
+     *		trapped, it is not counted, the PC still points at it, and the
+     *		trap is pending.
+     */
+    private int runBlock(int quantum) {
+	int pc = registers[regPC];
+	long paddr = translate(pc, 4, false);
+	if (paddr == -1)
+	    return 0;
+	
+	Block block = getBlock(paddr);
+	int flushes = numFlushes;
+	int executed = 0;
+
+	while (true) {
+	    Op[] ops = block.ops;
+	    for (int i=0; i<ops.length; i++) {
+		if (!ops[i].execute())
+		    return executed;
+		executed++;
+
+		pc += 4;
+		if (executed == quantum || numFlushes != flushes)
+		    return executed;
+		if (registers[regPC] != pc)
+		    break;
+	    }
+
+	    if (block.executions < hotBlockThreshold) {
+		block.executions++;
+		return executed;
+	    }
+
+	    pc = registers[regPC];
+	    Block next = block.getLink(pc, flushes);
+	    if (next == null) {
+		paddr = translate(pc, 4, false);
+		if (paddr == -1)
+		    return executed;
+		next = getBlock(paddr);
+		block.setLink(pc, next, flushes);
+	    }
+	    block = next;
 	}
     }
 
@@ -175,6 +480,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	numFlushes++;
     }
 
     /**
@@ -216,6 +522,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	numFlushes++;
     }
 
     /**
@@ -232,12 +539,260 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Physical memory is normally kept as separate frames, allocated when
+     * first written. The first call to this method gathers every frame into
+     * one array and keeps all of memory in that array from then on, so it
+     * cannot be used with off-heap memory or with 2GB or more of memory.
+     *
+     * <p>
+     * Since the caller may write anywhere in the returned array, every cached
+     * decoded instruction is discarded. Kernels that know which page they are
+     * about to modify should use <tt>invalidatePage()</tt> instead of calling
+     * this method repeatedly.
+     *
      * @return	the main memory array.
+     * @deprecated	use <tt>readFrame()</tt>, <tt>writeFrame()</tt>, and
+     *			<tt>zeroFrame()</tt>, which work with any amount of
+     *			memory and do not discard the code of other pages.
      */
+    @Deprecated
     public byte[] getMemory() {
+	if (mainMemory == null) {
+	    Lib.assertTrue(!offHeapMemory,
+			   "getMemory() is not available with off-heap memory");
+	    Lib.assertTrue((long) numPhysPages * pageSize <= Integer.MAX_VALUE,
+			   "getMemory() is not available with 2GB of memory");
+
+	    mainMemory = new byte[numPhysPages * pageSize];
+
+	    for (int ppn=0; ppn<numPhysPages; ppn++) {
+		if (frames[ppn] != null)
+		    readFrame(ppn, 0, mainMemory, ppn*pageSize, pageSize);
+
+		ByteBuffer frame =
+		    ByteBuffer.wrap(mainMemory, ppn*pageSize, pageSize).slice();
+		frames[ppn] = frame.order(ByteOrder.LITTLE_ENDIAN);
+	    }
+	}
+	
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    invalidateCode(ppn);
+
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from a page of physical memory into an array.
+     *
+     * @param	ppn	the physical page to read.
+     * @param	offset	the first byte to read within the page.
+     * @param	data	the array where the data will be stored.
+     * @param	dataOffset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy. The copy must not extend
+     *			past the end of the page.
+     */
+    public void readFrame(int ppn, int offset, byte[] data, int dataOffset,
+			  int length) {
+	checkFrameRange(ppn, offset, length);
+
+	ByteBuffer frame = frames[ppn];
+
+	// a frame that was never written is all zeroes
+	if (frame == null) {
+	    for (int i=0; i<length; i++)
+		data[dataOffset+i] = 0;
+	}
+	else if (frame.hasArray()) {
+	    System.arraycopy(frame.array(), frame.arrayOffset()+offset,
+			     data, dataOffset, length);
+	}
+	else {
+	    ByteBuffer source = frame.duplicate();
+	    source.position(offset);
+	    source.get(data, dataOffset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into a page of physical memory, and discard
+     * any code cached for that page.
+     *
+     * @param	ppn	the physical page to write.
+     * @param	offset	the first byte to write within the page.
+     * @param	data	the array containing the data to copy.
+     * @param	dataOffset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy. The copy must not extend
+     *			past the end of the page.
+     */
+    public void writeFrame(int ppn, int offset, byte[] data, int dataOffset,
+			   int length) {
+	checkFrameRange(ppn, offset, length);
+
+	ByteBuffer frame = getFrame(ppn);
+
+	if (frame.hasArray()) {
+	    System.arraycopy(data, dataOffset,
+			     frame.array(), frame.arrayOffset()+offset, length);
+	}
+	else {
+	    ByteBuffer target = frame.duplicate();
+	    target.position(offset);
+	    target.put(data, dataOffset, length);
+	}
+
+	invalidateCode(ppn);
+    }
+
+    /**
+     * Read bytes from a file directly into a page of physical memory, and
+     * discard any code cached for that page.
+     *
+     * @param	ppn	the physical page to write.
+     * @param	offset	the first byte to write within the page.
+     * @param	file	the file to read from.
+     * @param	position	the offset within the file of the first byte to
+     *				read.
+     * @param	length	the number of bytes to read. The read must not extend
+     *			past the end of the page, and the file must contain
+     *			all of them.
+     */
+    public void loadFrame(int ppn, int offset, OpenFile file, int position,
+			  int length) {
+	checkFrameRange(ppn, offset, length);
+
+	ByteBuffer frame = getFrame(ppn);
+
+	if (frame.hasArray()) {
+	    Lib.strictReadFile(file, position, frame.array(),
+			       frame.arrayOffset()+offset, length);
+	}
+	else {
+	    // off-heap frames have no array to read into
+	    if (loadBuffer == null)
+		loadBuffer = new byte[pageSize];
+
+	    Lib.strictReadFile(file, position, loadBuffer, 0, length);
+
+	    ByteBuffer target = frame.duplicate();
+	    target.position(offset);
+	    target.put(loadBuffer, 0, length);
+	}
+
+	invalidateCode(ppn);
+    }
+
+    /**
+     * Fill part of a page of physical memory with zeroes, and discard any
+     * code cached for that page.
+     *
+     * @param	ppn	the physical page to clear.
+     * @param	offset	the first byte to clear within the page.
+     * @param	length	the number of bytes to clear. Must not extend past the
+     *			end of the page.
+     */
+    public void zeroFrame(int ppn, int offset, int length) {
+	checkFrameRange(ppn, offset, length);
+
+	ByteBuffer frame = frames[ppn];
+	if (frame == null)
+	    return;
+
+	if (frame.hasArray()) {
+	    Arrays.fill(frame.array(), frame.arrayOffset()+offset,
+			frame.arrayOffset()+offset+length, (byte) 0);
+	}
+	else {
+	    for (int i=0; i<length; i++)
+		frame.put(offset+i, (byte) 0);
+	}
+
+	invalidateCode(ppn);
+    }
+
+    /**
+     * Search part of a page of physical memory for a byte, without copying
+     * it.
+     *
+     * @param	ppn	the physical page to search.
+     * @param	offset	the first byte to search within the page.
+     * @param	length	the number of bytes to search. Must not extend past
+     *			the end of the page.
+     * @param	value	the byte to search for.
+     * @return	the offset within the page of the first matching byte, or -1
+     *		if there is none.
+     */
+    public int findInFrame(int ppn, int offset, int length, byte value) {
+	checkFrameRange(ppn, offset, length);
+
+	ByteBuffer frame = frames[ppn];
+	if (frame == null)
+	    return (value == 0 && length > 0) ? offset : -1;
+
+	for (int i=offset; i<offset+length; i++) {
+	    if (frame.get(i) == value)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private void checkFrameRange(int ppn, int offset, int length) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= pageSize);
+    }
+
+    /**
+     * Return the specified page of physical memory, allocating it if it has
+     * never been written.
+     *
+     * @param	ppn	the physical page.
+     * @return	the little-endian buffer holding that page.
+     */
+    private ByteBuffer getFrame(int ppn) {
+	ByteBuffer frame = frames[ppn];
+	if (frame == null) {
+	    if (offHeapMemory)
+		frame = ByteBuffer.allocateDirect(pageSize);
+	    else
+		frame = ByteBuffer.allocate(pageSize);
+	    
+	    frame.order(ByteOrder.LITTLE_ENDIAN);
+	    frames[ppn] = frame;
+	}
+
+	return frame;
+    }
+
+    /**
+     * Discard any decoded instructions cached for the specified physical
+     * page. Must be called after modifying a page of physical memory through
+     * a reference obtained before the modification began.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	invalidateCode(ppn);
+    }
+
+    /**
+     * Discard the decoded instructions and translated blocks cached for the
+     * specified physical page. If there were any, a block running from that
+     * page will stop before its next instruction.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    private void invalidateCode(int ppn) {
+	if (decodedPages[ppn] == null && blockPages[ppn] == null)
+	    return;
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+	numFlushes++;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -289,11 +844,10 @@ public final class Processor {
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
-     * @return		the physical address.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		the physical address, or -1 if a translation error
+     *			occurred, in which case the trap is pending.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
+    private long translate(int vaddr, int size, boolean writing) {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -301,7 +855,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    return trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -317,7 +871,7 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		return trap(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
@@ -333,21 +887,21 @@ public final class Processor {
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		return trap(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    return trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    return trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,10 +909,10 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	long paddr = ((long) ppn*pageSize) + offset;
 
 	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString((int) paddr));	
 	return paddr;
     }
 
@@ -368,18 +922,21 @@ public final class Processor {
      *
      * @param	vaddr	the virtual address to read from.
      * @param	size	the number of bytes to read (1, 2, or 4).
-     * @return		the value read.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		the value read, or 0 if a translation error occurred, in
+     *			which case the trap is pending.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
+    private int readMem(int vaddr, int size) {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	long paddr = translate(vaddr, size, false);
+	if (paddr == -1)
+	    return 0;
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhysical(paddr, size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -395,19 +952,121 @@ public final class Processor {
      * @param	vaddr	the virtual address to write to.
      * @param	size	the number of bytes to write (1, 2, or 4).
      * @param	value	the value to store.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		<tt>false</tt> if a translation error occurred, in which
+     *			case the trap is pending.
      */
-    private void writeMem(int vaddr, int size, int value)
-	throws MipsException {
+    private boolean writeMem(int vaddr, int size, int value) {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	long paddr = translate(vaddr, size, true);
+	if (paddr == -1)
+	    return false;
+
+	int ppn = (int) (paddr / pageSize);
+	int offset = (int) (paddr % pageSize);
+	ByteBuffer frame = getFrame(ppn);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	switch (size) {
+	case 1:
+	    frame.put(offset, (byte) value);
+	    break;
+	case 2:
+	    frame.putShort(offset, (short) value);
+	    break;
+	case 4:
+	    frame.putInt(offset, value);
+	    break;
+	}
+
+	// stores into code invalidate the decoded copy of that page
+	invalidateCode(ppn);
+	return true;
+    }
+
+    /**
+     * Read a little-endian value of <i>size</i> (1, 2, or 4) bytes from
+     * physical memory, sign-extending it to 32 bits as
+     * <tt>Lib.bytesToInt()</tt> would. The access must be aligned.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     */
+    private int readPhysical(long paddr, int size) {
+	ByteBuffer frame = frames[(int) (paddr / pageSize)];
+	if (frame == null)
+	    return 0;
+
+	int offset = (int) (paddr % pageSize);
+	
+	switch (size) {
+	case 1:
+	    return frame.get(offset);
+	case 2:
+	    return frame.getShort(offset);
+	default:
+	    return frame.getInt(offset);
+	}
+    }
+
+    /**
+     * Return the decoded form of the instruction at the specified physical
+     * address, decoding it and caching the result if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private Decoded getDecoded(long paddr) {
+	int ppn = (int) (paddr / pageSize);
+	
+	Decoded[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (int) (paddr % pageSize) / 4;
+	
+	Decoded decoded = page[index];
+	if (decoded == null) {
+	    decoded = new Decoded(readPhysical(paddr, 4));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Return the translated basic block starting at the specified physical
+     * address, translating it and caching the result if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the first
+     *			instruction in the block.
+     * @return		the translated block.
+     */
+    private Block getBlock(long paddr) {
+	int ppn = (int) (paddr / pageSize);
+	
+	Block[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new Block[pageSize/4];
+	    blockPages[ppn] = page;
+	}
+
+	int index = (int) (paddr % pageSize) / 4;
+	
+	Block block = page[index];
+	if (block == null) {
+	    block = new Block(paddr);
+	    page[index] = block;
+	}
+
+	return block;
     }
 
     /**
@@ -553,8 +1212,66 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /**
+     * Main memory for user programs, as one little-endian buffer per physical
+     * page. A page that has never been written has no buffer, and reads as
+     * zeroes.
+     */
+    private ByteBuffer[] frames;
+    /** <tt>true</tt> if frames are allocated outside the Java heap. */
+    private boolean offHeapMemory;
+    /**
+     * The array returned by <tt>getMemory()</tt>, holding every frame, or
+     * <tt>null</tt> if it has never been called.
+     */
+    private byte[] mainMemory = null;
+    /** A page used by <tt>loadFrame()</tt> to fill off-heap frames. */
+    private byte[] loadBuffer = null;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. A page's entry is <tt>null</tt> until an instruction is
+     * fetched from it, and is reset whenever the page may have been written.
+     */
+    private Decoded[][] decodedPages;
+    /**
+     * Translated basic blocks, indexed the same way as <tt>decodedPages</tt>
+     * by the physical address of their first instruction, and discarded
+     * along with it.
+     */
+    private Block[][] blockPages;
+    /** <tt>true</tt> if <tt>run()</tt> should execute translated blocks. */
+    private boolean translateBlocks;
+    /**
+     * The number of times the pipeline was flushed for an interrupt or
+     * exception, the address translation was changed, or cached code was
+     * discarded. A running block stops when this changes, and block links
+     * made before the change are no longer followed.
+     */
+    private int numFlushes = 0;
+    /**
+     * The number of times a block runs before its exits are linked to the
+     * blocks they reach.
+     */
+    private static final int hotBlockThreshold = 16;
+    /**
+     * The most instructions <tt>run()</tt> executes before advancing the
+     * time, when no interrupt is pending.
+     */
+    private static final int maxQuantum = 4096;
+
+    /** The file to write a snapshot to, or <tt>null</tt> if there is none. */
+    private String snapshotName;
+    /** The time at which to write the snapshot. */
+    private long snapshotTicks;
+    /**
+     * The snapshot being resumed from, or <tt>null</tt> if there is none or
+     * it has been fully restored.
+     */
+    private Snapshot resume = null;
+    /** <tt>true</tt> once the kernel has resumed its program. */
+    private boolean resumingProgram = false;
+    /** The kernel's state for the program now running. */
+    private ProgramState programState = null;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,127 +1279,542 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInterrupt = 'i';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    numFlushes++;
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Record a pending trap caused by the current instruction. Traps are
+     * reported by return value rather than by throwing, so taking one
+     * allocates nothing: every stage that can trap returns <tt>false</tt> (or
+     * -1 for <tt>translate()</tt>), and <tt>run()</tt> calls
+     * <tt>handleTrap()</tt>.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	<tt>false</tt>.
+     */
+    private boolean trap(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+	trapCause = cause;
+	trapHasBadVAddr = false;
+	return false;
+    }
+
+    /**
+     * Record a pending trap caused by the current instruction accessing
+     * <i>badVAddr</i>.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused it.
+     * @return	-1.
+     */
+    private int trap(int cause, int badVAddr) {
+	trap(cause);
+
+	trapHasBadVAddr = true;
+	trapBadVAddr = badVAddr;
+	return -1;
+    }
+
+    /**
+     * Deliver the pending trap to the kernel exception handler.
+     */
+    private void handleTrap() {
+	int cause = trapCause;
+	Lib.assertTrue(cause != -1);
+	trapCause = -1;
+	
+	// the kernel may change any mapping before we return
+	numFlushes++;
+	    
+	writeRegister(regCause, cause);
+
+	if (trapHasBadVAddr)
+	    writeRegister(regBadVAddr, trapBadVAddr);
+
+	if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    System.out.println("exception: " + exceptionNames[cause]);
+
+	finishLoad();
+
+	Lib.assertTrue(exceptionHandler != null);
+
+	// autograder might not want kernel to know about this exception
+	if (!Machine.autoGrader().exceptionHandler(privilege))
+	    return;
+	    
+	exceptionHandler.run();
+    }
+
+    /** The cause of the pending trap, or -1 if there is none. */
+    private int trapCause = -1;
+    /** <tt>true</tt> if the pending trap has a bad virtual address. */
+    private boolean trapHasBadVAddr;
+    /** The bad virtual address of the pending trap. */
+    private int trapBadVAddr;
+
+    /**
+     * A straight-line run of instructions within one physical page, ending
+     * after the delay slot of the first branch or jump, or at the first
+     * instruction that always traps. Each instruction is translated into an
+     * <tt>Op</tt> specialized for its operation and operands.
+     */
+    private class Block {
+	Block(long paddr) {
+	    Vector<Op> list = new Vector<Op>();
+	    long end = (paddr/pageSize + 1) * pageSize;
+	    boolean delaySlot = false;
+
+	    for (; paddr < end; paddr += 4) {
+		Decoded decoded = getDecoded(paddr);
+		list.add(translateOp(decoded));
+
+		if (delaySlot)
+		    break;
+		
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    delaySlot = true;
+		else if (decoded.operation == Mips.SYSCALL ||
+			 decoded.operation == Mips.UNIMPL ||
+			 decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    ops = list.toArray(new Op[list.size()]);
+	}
 
-	    this.cause = cause;
+	/**
+	 * Return the block this block's exit to <i>vaddr</i> was linked to, if
+	 * the link was made during the current flush epoch.
+	 *
+	 * @param	vaddr	the virtual address control left this block for.
+	 * @param	epoch	the current value of <tt>numFlushes</tt>.
+	 * @return	the linked block, or <tt>null</tt> if there is none.
+	 */
+	Block getLink(int vaddr, int epoch) {
+	    if (linkEpoch != epoch)
+		return null;
+	    if (linkAddresses[0] == vaddr)
+		return links[0];
+	    if (linkAddresses[1] == vaddr)
+		return links[1];
+	    return null;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	/**
+	 * Link this block's exit to <i>vaddr</i> to the specified block. A block
+	 * has at most two exits (taken and not taken), so two links suffice
+	 * for a conditional branch; an indirect jump replaces the older one.
+	 *
+	 * @param	vaddr	the virtual address control left this block for.
+	 * @param	next	the block at that address.
+	 * @param	epoch	the current value of <tt>numFlushes</tt>.
+	 */
+	void setLink(int vaddr, Block next, int epoch) {
+	    if (linkEpoch != epoch) {
+		linkEpoch = epoch;
+		links[0] = links[1] = null;
+	    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+	    int slot = (links[0] == null) ? 0 : 1;
+	    if (links[1] != null) {
+		links[0] = links[1];
+		linkAddresses[0] = linkAddresses[1];
+	    }
+	    links[slot] = next;
+	    linkAddresses[slot] = vaddr;
 	}
 
-	public void handle() {
-	    writeRegister(regCause, cause);
+	Op[] ops;
+	/** The number of times this block ran while it was still cold. */
+	int executions = 0;
 
-	    if (hasBadVAddr)
-		writeRegister(regBadVAddr, badVAddr);
+	private Block[] links = new Block[2];
+	private int[] linkAddresses = new int[2];
+	private int linkEpoch = -1;
+    }
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		System.out.println("exception: " + exceptionNames[cause]);
+    /**
+     * Translate a decoded instruction into an operation object. Common
+     * instructions get an operation that only does the work that instruction
+     * needs; everything else runs through the interpreter.
+     *
+     * @param	decoded	the instruction to translate.
+     * @return		the operation that executes it.
+     */
+    private Op translateOp(Decoded decoded) {
+	final int rs = decoded.rs, rt = decoded.rt, sh = decoded.sh;
+	final int imm = decoded.imm;
+	int flags = decoded.flags;
+	boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+	boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+
+	// instructions that can overflow, link, or touch hi/lo are left alone
+	if (Lib.test(Mips.OVERFLOW, flags))
+	    return new InterpretedOp(decoded);
+
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    if (immediate)
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rs] + imm; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() { return registers[rs] + registers[rt]; }
+		};
+	case Mips.SUB:
+	    return new ComputeOp(decoded) {
+		    int compute() { return registers[rs] - registers[rt]; }
+		};
+	case Mips.AND:
+	    if (immediate)
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rs] & imm; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() { return registers[rs] & registers[rt]; }
+		};
+	case Mips.OR:
+	    if (immediate)
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rs] | imm; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() { return registers[rs] | registers[rt]; }
+		};
+	case Mips.XOR:
+	    if (immediate)
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rs] ^ imm; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() { return registers[rs] ^ registers[rt]; }
+		};
+	case Mips.NOR:
+	    return new ComputeOp(decoded) {
+		    int compute() { return ~(registers[rs] | registers[rt]); }
+		};
+	case Mips.LUI:
+	    return new ComputeOp(decoded) {
+		    int compute() { return imm << 16; }
+		};
+	case Mips.SLT:
+	    // unsigned comparisons flip the sign bits and compare signed
+	    if (immediate && unsigned)
+		return new ComputeOp(decoded) {
+			int compute() {
+			    return ((registers[rs]^0x80000000) <
+				    (imm^0x80000000)) ? 1 : 0;
+			}
+		    };
+	    if (immediate)
+		return new ComputeOp(decoded) {
+			int compute() { return (registers[rs] < imm) ? 1 : 0; }
+		    };
+	    if (unsigned)
+		return new ComputeOp(decoded) {
+			int compute() {
+			    return ((registers[rs]^0x80000000) <
+				    (registers[rt]^0x80000000)) ? 1 : 0;
+			}
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() {
+			return (registers[rs] < registers[rt]) ? 1 : 0;
+		    }
+		};
+	case Mips.SLL:
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rt] << sh; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() {
+			return registers[rt] << (registers[rs]&0x1F);
+		    }
+		};
+	case Mips.SRA:
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new ComputeOp(decoded) {
+			int compute() { return registers[rt] >> sh; }
+		    };
+	    return new ComputeOp(decoded) {
+		    int compute() {
+			return registers[rt] >> (registers[rs]&0x1F);
+		    }
+		};
+
+	case Mips.LOAD:
+	    return new LoadOp(decoded);
+	case Mips.STORE:
+	    return new StoreOp(decoded);
+
+	case Mips.BEQ:
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] == registers[rt]; }
+		};
+	case Mips.BNE:
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] != registers[rt]; }
+		};
+	case Mips.BLEZ:
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] <= 0; }
+		};
+	case Mips.BGTZ:
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] > 0; }
+		};
+	case Mips.BLTZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] < 0; }
+		};
+	case Mips.BGEZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+	    return new BranchOp(decoded) {
+		    boolean taken() { return registers[rs] >= 0; }
+		};
+	case Mips.JUMP:
+	    return new JumpOp(decoded);
+	}
+
+	return new InterpretedOp(decoded);
+    }
+
+    /**
+     * One translated instruction. <tt>execute()</tt> has the same effect as
+     * the interpreter's fetch, decode, execute, and write back stages for the
+     * instruction, including completing the delayed load in progress and
+     * leaving the PC unchanged if it traps.
+     */
+    private abstract class Op {
+	Op(Decoded decoded) {
+	    this.decoded = decoded;
+	}
+
+	/**
+	 * Execute the instruction.
+	 *
+	 * @return	<tt>false</tt> if it trapped.
+	 */
+	abstract boolean execute();
+
+	Decoded decoded;
+    }
+
+    /**
+     * An operation that computes a value from registers and the immediate,
+     * and writes it to the destination register.
+     */
+    private abstract class ComputeOp extends Op {
+	ComputeOp(Decoded decoded) {
+	    super(decoded);
+	    dstReg = decoded.dstReg;
+	}
 
+	boolean execute() {
+	    // sources are read before the delayed load completes
+	    int result = compute();
 	    finishLoad();
+	    if (dstReg != 0)
+		registers[dstReg] = result;
+	    advancePC(registers[regNextPC]+4);
+	    return true;
+	}
 
-	    Lib.assertTrue(exceptionHandler != null);
+	abstract int compute();
 
-	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
-		return;
-	    
-	    exceptionHandler.run();
+	int dstReg;
+    }
+
+    private class LoadOp extends Op {
+	LoadOp(Decoded decoded) {
+	    super(decoded);
+	    rs = decoded.rs;
+	    imm = decoded.imm;
+	    size = decoded.size;
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	    dstReg = decoded.dstReg;
+	}
+
+	boolean execute() {
+	    int value = readMem(registers[rs] + imm, size);
+	    if (trapCause != -1)
+		return false;
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	    return true;
 	}
 
-	private boolean hasBadVAddr = false;
-	private int cause, badVAddr;
-    }	
+	int rs, imm, size, dstReg;
+	boolean unsigned;
+    }
+
+    private class StoreOp extends Op {
+	StoreOp(Decoded decoded) {
+	    super(decoded);
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    imm = decoded.imm;
+	    size = decoded.size;
+	}
+
+	boolean execute() {
+	    if (!writeMem(registers[rs] + imm, size, registers[rt]))
+		return false;
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	    return true;
+	}
+
+	int rs, rt, imm, size;
+    }
+
+    /** A conditional branch that does not link. */
+    private abstract class BranchOp extends Op {
+	BranchOp(Decoded decoded) {
+	    super(decoded);
+	    offset = decoded.imm << 2;
+	}
+
+	boolean execute() {
+	    boolean branch = taken();
+	    finishLoad();
+	    if (branch)
+		advancePC(registers[regNextPC] + offset);
+	    else
+		advancePC(registers[regNextPC]+4);
+	    return true;
+	}
+
+	abstract boolean taken();
+
+	int offset;
+    }
+
+    /** An unconditional jump: <tt>j</tt>, <tt>jal</tt>, <tt>jr</tt>, or
+     * <tt>jalr</tt>. */
+    private class JumpOp extends Op {
+	JumpOp(Decoded decoded) {
+	    super(decoded);
+	    register = (decoded.format == Mips.RFMT);
+	    rs = decoded.rs;
+	    target = decoded.target << 2;
+	    linkReg = Lib.test(Mips.LINK, decoded.flags) ? decoded.dstReg : 0;
+	}
+
+	boolean execute() {
+	    int jtarget;
+	    if (register)
+		jtarget = registers[rs];
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | target;
+
+	    int link = registers[regNextPC]+4;
+	    finishLoad();
+	    if (linkReg != 0)
+		registers[linkReg] = link;
+	    advancePC(jtarget);
+	    return true;
+	}
+
+	boolean register;
+	int rs, target, linkReg;
+    }
+
+    /** An instruction executed by the interpreter. */
+    private class InterpretedOp extends Op {
+	InterpretedOp(Decoded decoded) {
+	    super(decoded);
+	}
+
+	boolean execute() {
+	    return instruction.run(decoded);
+	}
+
+	Instruction instruction = new Instruction();
+    }
 
     private class Instruction {
-	public void run() throws MipsException {
+	/**
+	 * Fetch and execute the instruction at the current PC.
+	 *
+	 * @return	<tt>false</tt> if it trapped.
+	 */
+	public boolean run() {
 	    // hopefully this looks familiar to 152 students?
-	    fetch();
+	    if (!fetch())
+		return false;
 	    decode();
-	    execute();
-	    writeBack();
+	    return execute() && writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched.
+	 *
+	 * @param	decoded	the instruction at the current PC.
+	 * @return	<tt>false</tt> if it trapped.
+	 */
+	public boolean run(Decoded decoded) {
+	    this.decoded = decoded;
+	    decode();
+	    return execute() && writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
+	private boolean fetch() {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    long paddr = translate(registers[regPC], 4, false);
+	    if (paddr == -1)
+		return false;
+	    
+	    decoded = getDecoded(paddr);
+	    return true;
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1825,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -845,7 +1972,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	private boolean execute() {
 	    int value;
 	    int preserved;
 	    
@@ -862,15 +1989,12 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    return trap(exceptionOverflow);
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    return trap(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,10 +2063,12 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		return trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
+		if (trapCause != -1)
+		    return false;
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -953,6 +2079,8 @@ public final class Processor {
 
 	    case Mips.LWL:
 		value = readMem(addr&~0x3, 4);
+		if (trapCause != -1)
+		    return false;
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -964,6 +2092,8 @@ public final class Processor {
 
 	    case Mips.LWR:
 		value = readMem(addr&~0x3, 4);
+		if (trapCause != -1)
+		    return false;
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +2104,14 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		if (!writeMem(addr, size, (int) src2))
+		    return false;
 		break;
 
 	    case Mips.SWL:
 		value = readMem(addr&~0x3, 4);
+		if (trapCause != -1)
+		    return false;
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +2121,14 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		if (!writeMem(addr&~0x3, 4, (int) dst))
+		    return false;
 		break;
 
 	    case Mips.SWR:
 		value = readMem(addr&~0x3, 4);
+		if (trapCause != -1)
+		    return false;
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,24 +2138,27 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		if (!writeMem(addr&~0x3, 4, (int) dst))
+		    return false;
 		break;
 
 	    case Mips.UNIMPL:
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		return trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
 	    }
+
+	    return true;
 	}
 
-	private void writeBack() throws MipsException {
-	    // if instruction is signed, but carry bit !+ sign bit, throw
+	private boolean writeBack() {
+	    // if instruction is signed, but carry bit !+ sign bit, trap
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		return trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1049,9 +2188,12 @@ public final class Processor {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("\n");
+
+	    return true;
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +2205,73 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on its encoding: the
+     * extracted fields, the opcode table entry, the memory access size, the
+     * destination register, and the (possibly zero-extended) immediate.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
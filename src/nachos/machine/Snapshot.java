@@ -0,0 +1,245 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the state of the simulated machine to a file, and restores it, so
+ * that a benchmark can be rerun from the same warmed-up point without paying
+ * for everything that led up to it.
+ *
+ * <p>
+ * A snapshot is written while a user program is running (see the <tt>-w</tt>
+ * switch). It holds the processor's physical memory, the state the kernel
+ * keeps for the running program (see <tt>Processor.ProgramState</tt>), the
+ * processor's registers and TLB, the simulated time and statistics, and the
+ * times at which the pending interrupts are due.
+ *
+ * <p>
+ * A snapshot is restored into a run of the same kernel, configuration, and
+ * program (see the <tt>-r</tt> switch), in three steps:
+ *
+ * <ol>
+ * <li>Physical memory is restored when the processor is created, before the
+ * kernel boots.
+ * <li>When the kernel starts its first program, it asks the processor to
+ * resume it, and restores its own state for the program, such as the page
+ * table, instead of loading the program.
+ * <li>When the processor starts running the program, the registers, TLB,
+ * time, and statistics are restored, and the pending interrupts are moved to
+ * their saved times.
+ * </ol>
+ *
+ * <p>
+ * Interrupt handlers are Java objects and cannot be saved, so each saved
+ * interrupt is matched with a pending interrupt of the same type in the new
+ * run. A snapshot whose pending interrupts do not match those of the new run
+ * one for one is refused.
+ */
+final class Snapshot {
+    private Snapshot(Privilege privilege, String name, DataInputStream in) {
+	this.privilege = privilege;
+	this.name = name;
+	this.in = in;
+    }
+
+    /**
+     * Write a snapshot of the machine to the specified file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	name		the name of the file to write.
+     * @param	program		the kernel's state for the running program.
+     */
+    static void write(final Privilege privilege, final String name,
+		      Processor.ProgramState program) {
+	Lib.debug(dbgSnapshot, "writing snapshot to " + name + " at time "
+		  + privilege.stats.totalTicks);
+
+	// the kernel's state is written outside the privileged block
+	final byte[] programBytes;
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    program.save(out);
+	    out.close();
+	    programBytes = bytes.toByteArray();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not save program state: " + e);
+	    return;
+	}
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataOutputStream out = new DataOutputStream(
+			    new BufferedOutputStream(new GZIPOutputStream(
+				new FileOutputStream(name))));
+
+			out.writeInt(magic);
+			Machine.processor().saveMemory(out);
+			out.writeInt(programBytes.length);
+			out.write(programBytes);
+			Machine.processor().saveRegisters(out);
+			writeStats(out, privilege.stats);
+			Machine.interrupt().save(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not write snapshot " +
+					     name + ": " + e);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Open a snapshot to resume from, and restore physical memory from it.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	name		the name of the file to read.
+     * @param	processor	the processor whose memory to restore.
+     * @return	the snapshot, ready for the rest of it to be restored.
+     */
+    static Snapshot open(final Privilege privilege, final String name,
+			 Processor processor) {
+	final DataInputStream[] in = new DataInputStream[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			in[0] = new DataInputStream(
+			    new BufferedInputStream(new GZIPInputStream(
+				new FileInputStream(name))));
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not read snapshot " +
+					     name + ": " + e);
+		    }
+		}
+	    });
+
+	Snapshot snapshot = new Snapshot(privilege, name, in[0]);
+
+	try {
+	    Lib.assertTrue(snapshot.in.readInt() == magic,
+			   name + " is not a snapshot");
+	    processor.restoreMemory(snapshot.in);
+	}
+	catch (IOException e) {
+	    snapshot.fail(e);
+	}
+
+	Lib.debug(dbgSnapshot, "restored memory from snapshot " + name);
+	return snapshot;
+    }
+
+    /**
+     * Restore the kernel's state for the program from this snapshot.
+     *
+     * @param	program		the kernel's state for the program.
+     */
+    void restoreProgram(Processor.ProgramState program) {
+	Lib.assertTrue(!programRestored);
+
+	try {
+	    byte[] programBytes = new byte[in.readInt()];
+	    in.readFully(programBytes);
+
+	    ByteArrayInputStream bytes =
+		new ByteArrayInputStream(programBytes);
+	    program.restore(new DataInputStream(bytes));
+
+	    Lib.assertTrue(bytes.available() == 0,
+			   "kernel did not restore all of its program state");
+	}
+	catch (IOException e) {
+	    fail(e);
+	}
+
+	programRestored = true;
+    }
+
+    /**
+     * Restore the rest of the machine from this snapshot, and close it. The
+     * kernel must already have restored its state for the program.
+     */
+    void restoreMachine() {
+	Lib.assertTrue(programRestored,
+		       "kernel started a program without resuming it from " +
+		       name);
+
+	try {
+	    Machine.processor().restoreRegisters(in);
+	    readStats(in, privilege.stats);
+	    Machine.interrupt().restore(in);
+	    in.close();
+	}
+	catch (IOException e) {
+	    fail(e);
+	}
+
+	Lib.debug(dbgSnapshot, "resumed snapshot " + name + " at time "
+		  + privilege.stats.totalTicks);
+    }
+
+    private void fail(IOException e) {
+	Lib.assertNotReached("could not read snapshot " + name + ": " + e);
+    }
+
+    private static void writeStats(DataOutputStream out, Stats stats)
+	throws IOException {
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+    }
+
+    private static void readStats(DataInputStream in, Stats stats)
+	throws IOException {
+	stats.totalTicks = in.readLong();
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+    }
+
+    private Privilege privilege;
+    private String name;
+    private DataInputStream in;
+    /** <tt>true</tt> once the kernel has restored its program state. */
+    private boolean programRestored = false;
+
+    /** Identifies a snapshot file, and the version of its format. */
+    private static final int magic = 0x4E534E02;
+
+    private static final char dbgSnapshot = 'w';
+}
@@ -15,7 +15,10 @@ public final class Stats {
     }
 
     /**
-     * Print out the statistics in this object.
+     * Print out the statistics in this object. The context switch count and
+     * latency are only printed if the <tt>nachos.conf</tt> key
+     * <tt>Stats.contextSwitches</tt> is <tt>true</tt>, since the latency is
+     * real time and differs from run to run.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -29,6 +32,15 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (Config.getBoolean("Stats.contextSwitches", false))
+	    System.out.println("Context switches: " + numContextSwitches
+			       + ", average latency "
+			       + (contextSwitchTime /
+				  Math.max(numContextSwitches, 1))
+			       + " ns");
+	if (numRealTimeJobs > 0)
+	    System.out.println("Real-time jobs: " + numRealTimeJobs
+			       + ", deadline misses " + numDeadlineMisses);
     }
 
     /**
@@ -61,6 +73,18 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of context switches between different TCBs. */
+    public long numContextSwitches = 0;
+    /**
+     * The total real time, in nanoseconds, between the start of each context
+     * switch and the moment the next TCB started running. Unlike the other
+     * statistics, this depends on the host, not on the simulation.
+     */
+    public long contextSwitchTime = 0;
+    /** The total number of real-time jobs that have completed. */
+    public int numRealTimeJobs = 0;
+    /** The number of real-time jobs that completed after their deadline. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,17 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The Java thread is only created when the TCB is first switched to, so a
+ * thread that has been forked but has not run yet costs nothing but memory.
+ * The number of TCBs that may be started at once is limited to
+ * <tt>maxThreads</tt>, unless the <tt>TCB.maxThreads</tt> configuration key
+ * raises it, and <tt>TCB.stackSize</tt> can ask for Java threads with smaller
+ * stacks, so that a kernel can have many thousands of threads. When a TCB is
+ * destroyed, its Java thread is kept in a pool of up to <tt>TCB.poolSize</tt>
+ * threads, and reused for the next TCB that needs one, so forking does not
+ * pay for creating a Java thread each time.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +52,11 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	poolSize = Config.getInteger("TCB.poolSize", poolSize);
+	Lib.assertTrue(threadLimit > 0 && stackSize >= 0 && poolSize >= 0);
     }
     
     /**
@@ -56,17 +73,15 @@ public final class TCB {
 	 * non-Nachos threads used the TCB code.
 	 */
 	
-	/* Make sure this TCB has not already been started. If done is false,
-	 * then destroy() has not yet set javaThread back to null, so we can
-	 * use javaThread as a reliable indicator of whether or not start() has
-	 * already been invoked.
+	/* Make sure this TCB has not already been started. The Java thread
+	 * is created lazily, so javaThread does not tell us.
 	 */
-	Lib.assertTrue(javaThread == null && !done);
+	Lib.assertTrue(!started && !done);
 
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -84,29 +99,13 @@ public final class TCB {
 	runningThreads.add(this);
 
 	this.target = target;
+	started = true;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we will have to make a new Java
+	     * thread to run it, but there is no need to do that until the
+	     * first context switch to it. See startJavaThread().
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
-	     */
-	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
-	    currentTCB.waitForInterrupt();
 	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
@@ -157,11 +156,56 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
-	
-	this.interrupt();
+
+	/* Each TCB has its own critical section nesting. A TCB that has not
+	 * run yet has none.
+	 */
+	Interrupt interrupt = Machine.interrupt();
+	previous.criticalDepth = interrupt.criticalDepth;
+	previous.criticalStatus = interrupt.criticalStatus;
+	interrupt.criticalDepth = this.criticalDepth;
+	interrupt.criticalStatus = this.criticalStatus;
+
+	switchStartTime = System.nanoTime();
+
+	if (javaThread == null)
+	    this.startJavaThread();
+	else
+	    this.interrupt();
 	previous.yield();
     }
     
+    /**
+     * Give this TCB a Java thread to run in, the first time it is switched
+     * to. If a destroyed TCB has left a Java thread in the pool, this TCB
+     * takes it over, otherwise it creates and starts a new one. Either way
+     * the thread finds this TCB already running, so it goes straight through
+     * <tt>yield()</tt> in <tt>threadroot()</tt> and makes this TCB the
+     * current TCB. Creating Java threads is a privileged operation.
+     */
+    private void startJavaThread() {
+	running = true;
+
+	if (!idleCarriers.isEmpty()) {
+	    carrier = idleCarriers.remove(idleCarriers.size()-1);
+	    javaThread = carrier.thread;
+	    carrier.assign(this);
+	    return;
+	}
+
+	carrier = new Carrier(this);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    carrier.thread =
+			new Thread(null, carrier, "TCB", stackSize);
+		}
+	    });
+
+	javaThread = carrier.thread;
+	javaThread.start();
+    }
+
     /**
      * Destroy this TCB. This TCB must not be in use by the current thread.
      * This TCB must also have been authorized to be destroyed by the
@@ -212,14 +256,10 @@ public final class TCB {
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
 	if (!isFirstTCB) {
-	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	    /* contextSwitch() started us, and has already set our running
+	     * flag, so yield() returns right away, making us the current TCB.
 	     */
 	    
-	    currentTCB.interrupt();
 	    this.yield();
 	}
 	else {
@@ -272,37 +312,98 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Put our Java thread back in the pool before waking up the TCB
+	     * in destroy(), so that nothing else runs until we're there.
+	     */
+	    if (carrier != null && idleCarriers.size() < poolSize) {
+		carrier.release();
+		idleCarriers.add(carrier);
+	    }
+	    
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
 
 	currentTCB = this;
+
+	privilege.stats.numContextSwitches++;
+	privilege.stats.contextSwitchTime += System.nanoTime() - switchStartTime;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * process of destroying TCBs, as well as in context switching from this
+     * TCB to another. We don't rely on <tt>currentTCB</tt>, since it is
+     * updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> may return spuriously, or right away if
+     * <tt>interrupt()</tt> already unparked us, so we check the flag each
+     * time.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking exactly the Java thread bound to it. There is no monitor
+     * shared between the two threads; the <tt>running</tt> flag is volatile,
+     * so everything the waking thread did before setting it is visible to
+     * this TCB once it sees the flag. Used in the ping-pong process of
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
+    }
+
+    /**
+     * A Java thread that runs TCBs, one after another. When the TCB it is
+     * running is destroyed, the carrier goes back to the pool, and parks
+     * until a new TCB is started in it.
+     */
+    private static class Carrier implements Runnable {
+	Carrier(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		TCB current = tcb;
+		current.threadroot();
+
+		// if we weren't put back in the pool, let the thread die
+		if (!current.pooled)
+		    return;
+
+		while (tcb == null)
+		    LockSupport.park(this);
+	    }
+	}
+
+	/**
+	 * Called by the doomed TCB, before it acknowledges its destruction.
+	 */
+	void release() {
+	    tcb.pooled = true;
+	    tcb = null;
+	}
+
+	/**
+	 * Start running the specified TCB in this carrier's thread.
+	 */
+	void assign(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	/** The TCB to run, or <tt>null</tt> while in the pool. */
+	private volatile TCB tcb;
+	private Thread thread;
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +428,33 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started TCBs, from <tt>TCB.maxThreads</tt>, or
+     * <tt>maxThreads</tt> by default.
+     */
+    private static int threadLimit = maxThreads;
+    /**
+     * The stack size to ask for when creating Java threads, from
+     * <tt>TCB.stackSize</tt>, or 0 to use the JVM's default.
+     */
+    private static long stackSize = 0;
+    /**
+     * The maximum number of idle Java threads to keep for reuse, from
+     * <tt>TCB.poolSize</tt>.
+     */
+    private static int poolSize = 32;
+
+    /**
+     * The Java threads left behind by destroyed TCBs, waiting for new TCBs to
+     * run.
+     */
+    private static Vector<Carrier> idleCarriers = new Vector<Carrier>();
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +477,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -362,6 +485,12 @@ public final class TCB {
     private static Vector<TCB> runningThreads = new Vector<TCB>();
     
     private static Privilege privilege;
+
+    /**
+     * The value of <tt>System.nanoTime()</tt> when the last context switch
+     * began, to measure how long it takes the next TCB to start running.
+     */
+    private static long switchStartTime;
     private static KThread toBeDestroyed = null;
 
     /**
@@ -388,7 +517,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -396,11 +525,28 @@ public final class TCB {
      * will know that the current TCB is doomed.
      */
     private boolean done = false;
+
+    /** Set by <tt>start()</tt>, which may only be called once. */
+    private boolean started = false;
+
+    /**
+     * The carrier whose Java thread runs this TCB, or <tt>null</tt> for the
+     * first TCB.
+     */
+    private Carrier carrier = null;
+    /** Set if this TCB's Java thread went back to the pool when destroyed. */
+    private boolean pooled = false;
+
+    /**
+     * The interrupt controller's critical section state, saved while this
+     * TCB is not running.
+     */
+    private int criticalDepth = 0;
+    private boolean criticalStatus;
     
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
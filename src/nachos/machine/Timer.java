@@ -13,6 +13,13 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer can also be taken out of periodic mode with
+ * <tt>setPeriodic(false)</tt>. It then only interrupts when it has been armed
+ * with <tt>schedule()</tt>, exactly once, at exactly the requested time. This
+ * lets a kernel ask for an interrupt only when it has something to do, such as
+ * waking a sleeping thread or preempting the current thread.
  */
 public final class Timer {
     /**
@@ -26,10 +33,6 @@ public final class Timer {
 	
 	this.privilege = privilege;
 	
-	timerInterrupt = new Runnable() {
-		public void run() { timerInterrupt(); }
-	    };
-	
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -37,6 +40,13 @@ public final class Timer {
 		}
 	    };
 
+	timerInterrupt = new Runnable() {
+		public void run() {
+		    pending = false;
+		    timerInterrupt();
+		}
+	    };
+
 	scheduleInterrupt();
     }
 
@@ -59,8 +69,101 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Get the part of the current time that Nachos has spent in kernel mode.
+     *
+     * @return	the number of kernel clock ticks since Nachos started.
+     */
+    public long getKernelTime() {
+	return privilege.stats.kernelTicks;
+    }
+
+    /**
+     * Get the part of the current time that Nachos has spent running user
+     * programs.
+     *
+     * @return	the number of user clock ticks since Nachos started.
+     */
+    public long getUserTime() {
+	return privilege.stats.userTicks;
+    }
+
+    /**
+     * Record that a real-time job has completed, and whether it completed by
+     * its deadline, in the machine's statistics.
+     *
+     * @param	deadline	the time by which the job should have
+     *				completed.
+     * @return	<tt>true</tt> if the job missed its deadline.
+     */
+    public boolean completeJob(long deadline) {
+	privilege.stats.numRealTimeJobs++;
+
+	if (getTime() <= deadline)
+	    return false;
+
+	privilege.stats.numDeadlineMisses++;
+	return true;
+    }
+
+    /**
+     * Select whether the timer interrupts periodically, approximately every
+     * 500 clock ticks (the default), or only when armed with
+     * <tt>schedule()</tt>. Either way, a timer interrupt that is pending when
+     * the mode changes never happens.
+     *
+     * @param	periodic	<tt>true</tt> to interrupt periodically.
+     */
+    public void setPeriodic(boolean periodic) {
+	if (periodic == this.periodic)
+	    return;
+
+	this.periodic = periodic;
+	cancelInterrupt();
+	
+	if (periodic)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Tests whether the timer interrupts periodically.
+     *
+     * @return	<tt>true</tt> if the timer interrupts periodically.
+     */
+    public boolean isPeriodic() {
+	return periodic;
+    }
+
+    /**
+     * Arm the timer to interrupt once, after the specified number of clock
+     * ticks. Replaces the interrupt the timer was armed with before, if it
+     * has not happened yet. The timer must not be in periodic mode.
+     *
+     * @param	delay	the number of clock ticks until the interrupt. Must
+     *			be positive.
+     */
+    public void schedule(long delay) {
+	Lib.assertTrue(!periodic);
+	Lib.assertTrue(delay > 0);
+
+	cancelInterrupt();
+	scheduleInterrupt(delay);
+    }
+
+    /**
+     * Disarm the timer, so that the interrupt it was armed with by
+     * <tt>schedule()</tt> never happens. The timer must not be in periodic
+     * mode.
+     */
+    public void cancel() {
+	Lib.assertTrue(!periodic);
+
+	cancelInterrupt();
+    }
+
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (periodic)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -73,7 +176,19 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
+	scheduleInterrupt(delay);
+    }
+
+    private void scheduleInterrupt(long delay) {
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	pending = true;
+    }
+
+    private void cancelInterrupt() {
+	if (pending) {
+	    Lib.assertTrue(privilege.interrupt.cancel(timerInterrupt));
+	    pending = false;
+	}
     }
 
     private void scheduleAutoGraderInterrupt() {
@@ -81,6 +196,9 @@ public final class Timer {
     }
 
     private long lastTimerInterrupt;
+    /** <tt>true</tt> if a timer interrupt is scheduled. */
+    private boolean pending = false;
+    private boolean periodic = true;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
 
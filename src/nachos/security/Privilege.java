@@ -149,6 +149,15 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Take back an interrupt that has been scheduled and has not occurred
+	 * yet, so that it never occurs.
+	 *
+	 * @param	handler	the handler the interrupt was scheduled with.
+	 * @return	<tt>true</tt> if such an interrupt was pending.
+	 */
+	public boolean cancel(Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +167,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by <i>count</i> ticks at once. This has
+	 * the same effect as calling <tt>tick(inKernelMode)</tt> <i>count</i>
+	 * times, provided no pending interrupt becomes due before the last of
+	 * those ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance the time by.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the time at which the earliest pending interrupt is due.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none is pending.
+	 */
+	public long nextPendingTime();
     }
 
     /**
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallMulticall	13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +258,29 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * One system call to be made by multicall(). Set syscall to the system call
+ * code (see above) and args to its arguments, as they would be passed to the
+ * syscall instruction. multicall() stores the value the call returns in
+ * result.
+ */
+struct syscallRequest {
+    int syscall;
+    int args[4];
+    int result;
+};
+
+/**
+ * Make each of the count system calls described by calls, in order, in a
+ * single trap into the kernel. This saves the cost of a trap per call for
+ * programs that make many small calls, such as a series of read() and
+ * write() calls. A call to multicall() itself fails, storing -1 as its result.
+ * At most 256 calls can be made at once.
+ *
+ * Returns the number of calls made, or -1 if calls could not be read.
+ */
+int multicall(struct syscallRequest *calls, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
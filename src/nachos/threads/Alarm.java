@@ -2,9 +2,18 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Normally the timer interrupts periodically, whether or not there is any
+ * thread to wake or preempt. A tickless alarm instead takes the timer out of
+ * periodic mode, and arms it only for the earliest sleeping thread's wake
+ * time, and for the end of the current thread's time slice while another
+ * thread is ready to run.
  */
 public class Alarm {
     /**
@@ -15,6 +24,21 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new Alarm. Set the machine's timer interrupt handler to this
+     * alarm's callback.
+     *
+     * @param	tickless	<tt>true</tt> to arm the timer only when an
+     *				interrupt is needed, rather than let it
+     *				interrupt periodically.
+     */
+    public Alarm(boolean tickless) {
+	this.tickless = tickless;
+
+	Machine.timer().setPeriodic(!tickless);
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -22,12 +46,49 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks), or, in tickless
+     * mode, whenever the timer was armed for. Wakes the threads whose wake
+     * time has come, and, if the scheduler agrees that the current thread's
+     * time slice is up, causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-	KThread.currentThread().yield();
+	long time = Machine.timer().getTime();
+
+	// wake every expired sleeper before anything gets to run
+	while (numSleepers > 0 && sleepers[0].wakeTime <= time) {
+	    TimedWait wait = sleepers[0];
+	    remove(0);
+	    wait.expired = true;
+	    wait.thread.ready();
+	}
+
+	if (tickless) {
+	    // the current thread is about to be preempted, so another slice
+	    // is needed if anything else is waiting for the processor
+	    preemptTime = never;
+	    if (KThread.numReadyThreads() > 0)
+		preemptTime = time + Stats.TimerTicks;
+
+	    armTimer();
+	}
+
+	if (ThreadedKernel.scheduler.timerInterrupt())
+	    KThread.preempt();
+    }
+
+    /**
+     * Called when a thread is put on the ready queue. In tickless mode, makes
+     * sure the timer will preempt the current thread when its time slice is
+     * up.
+     */
+    void threadReady() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (tickless && preemptTime == never) {
+	    preemptTime = Machine.timer().getTime() + Stats.TimerTicks;
+	    armTimer();
+	}
     }
 
     /**
@@ -45,9 +106,206 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	timedWait(x);
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Arrange for the current thread to be woken up (placed in the scheduler
+     * ready set) by the first timer interrupt at least <i>x</i> ticks from
+     * now, unless the returned wait is cancelled first. Unlike
+     * <tt>waitUntil()</tt>, this does not put the thread to sleep; the caller
+     * does that with <tt>KThread.sleep()</tt>, usually after also starting to
+     * wait for something else, like a <tt>Semaphore</tt>. Whoever wakes the
+     * thread first should cancel the wait, so that the alarm does not wake
+     * the thread a second time, or make sure the wait has expired.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @return	the pending wait.
+     */
+    public TimedWait timedWait(long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(x > 0);
+
+	TimedWait wait = new TimedWait(KThread.currentThread(),
+				       Machine.timer().getTime() + x,
+				       numWaitsCreated++);
+
+	if (numSleepers == sleepers.length)
+	    sleepers = Arrays.copyOf(sleepers, numSleepers*2);
+
+	wait.index = numSleepers;
+	sleepers[numSleepers++] = wait;
+	siftUp(wait.index);
+
+	if (tickless)
+	    armTimer();
+
+	return wait;
     }
+
+    /**
+     * Arm the timer for the earlier of the first sleeper's wake time and the
+     * end of the current time slice, unless it is already armed for that
+     * time.
+     */
+    private void armTimer() {
+	long time = Machine.timer().getTime();
+	long next = preemptTime;
+	if (numSleepers > 0)
+	    next = Math.min(next, sleepers[0].wakeTime);
+
+	if (next == armedTime && armedTime > time)
+	    return;
+
+	armedTime = next;
+	if (next == never)
+	    Machine.timer().cancel();
+	else
+	    Machine.timer().schedule(Math.max(next - time, 1));
+    }
+
+    /**
+     * Remove the sleeper at the specified heap position.
+     */
+    private void remove(int i) {
+	TimedWait wait = sleepers[i];
+	TimedWait last = sleepers[--numSleepers];
+	sleepers[numSleepers] = null;
+	wait.index = -1;
+
+	if (last != wait) {
+	    sleepers[i] = last;
+	    last.index = i;
+	    siftDown(i);
+	    siftUp(last.index);
+	}
+    }
+
+    private void siftUp(int i) {
+	TimedWait wait = sleepers[i];
+
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!wait.before(sleepers[parent]))
+		break;
+
+	    sleepers[i] = sleepers[parent];
+	    sleepers[i].index = i;
+	    i = parent;
+	}
+
+	sleepers[i] = wait;
+	wait.index = i;
+    }
+
+    private void siftDown(int i) {
+	TimedWait wait = sleepers[i];
+
+	while (true) {
+	    int child = 2*i+1;
+	    if (child >= numSleepers)
+		break;
+	    if (child+1 < numSleepers &&
+		sleepers[child+1].before(sleepers[child]))
+		child++;
+	    if (!sleepers[child].before(wait))
+		break;
+
+	    sleepers[i] = sleepers[child];
+	    sleepers[i].index = i;
+	    i = child;
+	}
+
+	sleepers[i] = wait;
+	wait.index = i;
+    }
+
+    /**
+     * A thread's pending wake-up, returned by <tt>timedWait()</tt>.
+     */
+    public class TimedWait {
+	private TimedWait(KThread thread, long wakeTime, long id) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	    this.id = id;
+	}
+
+	/**
+	 * Revoke this wait, so that the alarm will not wake the thread. Takes
+	 * <i>O(log n)</i> time with <i>n</i> sleeping threads. Interrupts
+	 * must be disabled.
+	 *
+	 * @return	<tt>true</tt> if the wait was revoked, or <tt>false</tt>
+	 *		if the alarm has already woken the thread, or the wait
+	 *		was already cancelled.
+	 */
+	public boolean cancel() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (index < 0)
+		return false;
+
+	    remove(index);
+	    return true;
+	}
+
+	/**
+	 * Tests whether the alarm has woken the thread.
+	 *
+	 * @return	<tt>true</tt> if the wait has expired.
+	 */
+	public boolean expired() {
+	    return expired;
+	}
+
+	/**
+	 * Get the time at which the thread is to be woken.
+	 *
+	 * @return	the wake time.
+	 */
+	public long getWakeTime() {
+	    return wakeTime;
+	}
+
+	private boolean before(TimedWait wait) {
+	    return wakeTime < wait.wakeTime ||
+		(wakeTime == wait.wakeTime && id < wait.id);
+	}
+
+	private KThread thread;
+	private long wakeTime;
+	private long id;
+	/** The position of this wait in the heap, or -1 if not pending. */
+	private int index = -1;
+	private boolean expired = false;
+    }
+
+    private boolean tickless;
+
+    /**
+     * The pending waits, as a binary min-heap ordered by wake time, and then
+     * by the order in which they were started.
+     */
+    private TimedWait[] sleepers = new TimedWait[initialSleepers];
+    private int numSleepers = 0;
+    private long numWaitsCreated = 0;
+
+    /** The end of the current time slice, in tickless mode. */
+    private long preemptTime = never;
+    /** The time the timer is armed for, in tickless mode. */
+    private long armedTime = never;
+
+    private static final int initialSleepers = 16;
+    private static final long never = Long.MAX_VALUE;
 }
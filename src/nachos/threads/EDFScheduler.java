@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first real-time scheduler. Each queue keeps its
+ * waiting threads in a balanced tree ordered by the absolute deadline of
+ * their current jobs (see <tt>KThread.getDeadline()</tt>), so the next thread
+ * is always the one whose deadline is soonest. Threads that are not real-time
+ * threads have no deadline, and share whatever time is left in FIFO order.
+ *
+ * <p>
+ * A real-time thread declares its period, relative deadline, and cost with
+ * <tt>KThread.setRealTime()</tt>, and completes each job with
+ * <tt>KThread.waitForNextPeriod()</tt>, which sleeps on the alarm until the
+ * next release. Since the alarm wakes the thread from the timer interrupt,
+ * and every timer interrupt preempts the current thread, a released job with
+ * an earlier deadline starts running at once.
+ *
+ * <p>
+ * The scheduler admits a real-time thread only if, with it, the sum over all
+ * real-time threads of cost divided by relative deadline is at most 1. Since
+ * no deadline exceeds its period, this is at least the processor utilization,
+ * and earliest-deadline-first scheduling then meets every deadline, as long
+ * as jobs do not run longer than their cost or block. Deadline misses are
+ * counted in the machine's statistics.
+ *
+ * <p>
+ * The scheduler does not donate deadlines, so a real-time thread waiting for
+ * a lock held by an ordinary thread can miss its deadline.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new earliest-deadline-first scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not donate
+     *					deadlines.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Admit the specified thread if the real-time threads, including it,
+     * would not need more than the whole processor.
+     *
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+				 long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+
+	double density = (double) cost / deadline;
+	for (Iterator<ThreadState> i=realTime.iterator(); i.hasNext(); ) {
+	    ThreadState admitted = i.next();
+	    if (admitted != state)
+		density += (double) admitted.cost / admitted.deadline;
+	}
+
+	if (density > 1 + epsilon) {
+	    Lib.debug(dbgEDF, "Rejected " + thread.toString() +
+		      ": density would be " + density);
+	    return false;
+	}
+
+	state.deadline = deadline;
+	state.cost = cost;
+	realTime.add(state);
+	return true;
+    }
+
+    public void withdrawRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	realTime.remove(getThreadState(thread));
+    }
+
+    /**
+     * Tests whether this scheduler is working. Three periodic threads whose
+     * densities add up to 0.74 are admitted, and a fourth that would raise
+     * the total above 1 is refused. The three then run alongside ordinary
+     * threads that never block, and must not miss a single deadline.
+     */
+    public void selfTest() {
+	// period, deadline, and cost of each real-time thread
+	final long[][] tasks = {
+	    { 4000, 4000, 1000 }, { 6000, 5000, 1200 }, { 10000, 8000, 2000 }
+	};
+	final int[] numJobs = new int[tasks.length];
+	final int[] numMisses = new int[1];
+	final boolean[] stop = new boolean[1];
+
+	KThread[] realTime = new KThread[tasks.length];
+	for (int i=0; i<tasks.length; i++) {
+	    final int which = i;
+
+	    realTime[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop[0]) {
+			    // each job runs for less than its cost
+			    compute(tasks[which][2] * 8/10);
+			    if (Machine.timer().getTime() >
+				KThread.currentThread().getDeadline())
+				numMisses[0]++;
+
+			    numJobs[which]++;
+			    KThread.waitForNextPeriod();
+			}
+		    }
+		}).setName("real-time " + i);
+
+	    Lib.assertTrue(realTime[i].setRealTime(tasks[i][0], tasks[i][1],
+						   tasks[i][2]));
+	}
+
+	Lib.assertTrue(!new KThread().setRealTime(1000, 1000, 300));
+
+	Runnable hog = new Runnable() {
+		public void run() {
+		    while (!stop[0])
+			compute(100);
+		}
+	    };
+	KThread[] hogs = KThread.forkAll(new Runnable[] { hog, hog });
+
+	for (int i=0; i<tasks.length; i++)
+	    realTime[i].fork();
+
+	ThreadedKernel.alarm.waitUntil(selfTestTicks);
+	stop[0] = true;
+	KThread.joinAll(hogs);
+	KThread.joinAll(realTime);
+
+	Lib.assertTrue(numMisses[0] == 0);
+	for (int i=0; i<tasks.length; i++)
+	    Lib.assertTrue(numJobs[i] >= selfTestTicks / tasks[i][0]);
+    }
+
+    /**
+     * Keep the processor busy for the specified number of ticks.
+     */
+    private static void compute(long ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by deadline.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue() {
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // the deadline cannot change while the thread waits
+	    state.queuedDeadline = thread.getDeadline();
+	    state.enqueueTime = numEnqueued++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    return waitQueue.pollFirst().thread;
+	}
+
+	/**
+	 * Does nothing, since this scheduler does not donate deadlines.
+	 *
+	 * @param	thread	the thread that acquired access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.queuedDeadline +
+				 ") ");
+	    }
+	    System.out.println();
+	}
+
+	private TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.queuedDeadline != b.queuedDeadline)
+			    return (a.queuedDeadline < b.queuedDeadline) ? -1 : 1;
+			if (a.enqueueTime != b.enqueueTime)
+			    return (a.enqueueTime < b.enqueueTime) ? -1 : 1;
+			return 0;
+		    }
+		});
+
+	private long numEnqueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	/** The admitted relative deadline and cost, if real-time. */
+	long deadline, cost;
+	/** The thread's absolute deadline when it started waiting. */
+	long queuedDeadline;
+	/** When the thread started waiting on its queue, to break ties. */
+	long enqueueTime;
+    }
+
+    /** The admitted real-time threads. */
+    private HashSet<ThreadState> realTime = new HashSet<ThreadState>();
+
+    /** How long the threads in the self test run for. */
+    private static final long selfTestTicks = 200000;
+
+    /** Allowance for rounding in the sum of densities. */
+    private static final double epsilon = 1e-9;
+
+    private static final char dbgEDF = 'e';
+}
@@ -0,0 +1,318 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to their
+ * weights, like the Linux completely fair scheduler.
+ *
+ * <p>
+ * Each thread accumulates <i>virtual runtime</i>: the ticks it has run,
+ * scaled down by its weight. Each queue keeps its waiting threads in a
+ * balanced tree ordered by virtual runtime, so adding a thread and removing
+ * the next one take <i>O(log n)</i> time with <i>n</i> waiting threads, and
+ * the next thread is always the one that has run least relative to its
+ * weight. Since every thread's virtual runtime advances at the same rate
+ * while it runs, each runnable thread receives processor time in proportion
+ * to its weight.
+ *
+ * <p>
+ * A thread is charged for the time since it was last dispatched whenever it
+ * gives up the processor: when it yields or is preempted, when it sleeps,
+ * and when it waits for a lock or a join. The ticks are the simulated
+ * machine's total ticks, kernel and user alike.
+ *
+ * <p>
+ * A thread that was not runnable for a while, or was just forked, would
+ * otherwise have a virtual runtime far behind the others, and would keep the
+ * processor until it caught up. So each queue keeps the largest virtual
+ * runtime it has dispatched, and a thread that is woken (or forked) onto the
+ * queue starts no more than one time slice behind it. Since a queue always
+ * dispatches its smallest virtual runtime, this follows the smallest one
+ * waiting, but never moves back.
+ *
+ * <p>
+ * Priorities range over the same values as for a
+ * <tt>PriorityScheduler</tt>. Each step up in priority makes a thread's
+ * weight 25% greater. The scheduler does not donate priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not donate
+     *					priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		       priority <= PriorityScheduler.priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < PriorityScheduler.priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > PriorityScheduler.priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Tests whether this scheduler is working. Threads of several priorities
+     * compute without blocking for a while, and each must get a share of the
+     * processor within 10% of its share of the total weight.
+     */
+    public void selfTest() {
+	final int[] priorities = { 1, 3, 7, 1 };
+	final long[] work = new long[priorities.length];
+	final boolean[] stop = new boolean[1];
+
+	KThread[] threads = new KThread[priorities.length];
+	for (int i=0; i<threads.length; i++) {
+	    final int which = i;
+
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop[0]) {
+			    boolean intStatus = Machine.interrupt().disable();
+			    Machine.interrupt().restore(intStatus);
+			    work[which]++;
+			}
+		    }
+		}).setName("fair " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    setPriority(threads[i], priorities[i]);
+	    Machine.interrupt().restore(intStatus);
+
+	    threads[i].fork();
+	}
+
+	ThreadedKernel.alarm.waitUntil(selfTestTicks);
+	stop[0] = true;
+	KThread.joinAll(threads);
+
+	long totalWork = 0, totalWeight = 0;
+	for (int i=0; i<threads.length; i++) {
+	    totalWork += work[i];
+	    totalWeight += weights[priorities[i]];
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    double share = (double) work[i] / totalWork;
+	    double expected = (double) weights[priorities[i]] / totalWeight;
+	    Lib.assertTrue(Math.abs(share - expected) <= expected/10);
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queue == null);
+
+	    if (thread == KThread.currentThread())
+		state.charge();
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  maxDispatchedVruntime -
+					  Stats.TimerTicks);
+
+	    state.queue = this;
+	    state.enqueueTime = numEnqueued++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the current thread may be giving up the processor to sleep
+	    ThreadState current = getThreadState(KThread.currentThread());
+	    if (current.queue == null)
+		current.charge();
+
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    ThreadState state = waitQueue.pollFirst();
+	    state.queue = null;
+	    state.lastDispatched = Machine.timer().getTime();
+
+	    maxDispatchedVruntime = Math.max(maxDispatchedVruntime,
+					     state.vruntime);
+
+	    return state.thread;
+	}
+
+	/**
+	 * Does nothing, since this scheduler does not donate priority.
+	 *
+	 * @param	thread	the thread that acquired access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return waitQueue.isEmpty() ? null : waitQueue.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	    System.out.println();
+	}
+
+	private TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+			    return (a.vruntime < b.vruntime) ? -1 : 1;
+			if (a.enqueueTime != b.enqueueTime)
+			    return (a.enqueueTime < b.enqueueTime) ? -1 : 1;
+			return 0;
+		    }
+		});
+
+	/** The largest virtual runtime of any thread dispatched so far. */
+	private long maxDispatchedVruntime = 0;
+	private long numEnqueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    lastDispatched = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge the thread for the ticks it has run since it was dispatched,
+	 * scaled by its weight.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    vruntime += (time - lastDispatched) * weights[priorityDefault] /
+		weights[priority];
+	    lastDispatched = time;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+
+	/** The time up to which the thread has been charged. */
+	long lastDispatched;
+	/** The queue the thread is waiting on, if any. */
+	FairQueue queue = null;
+	/** When the thread started waiting on its queue, to break ties. */
+	long enqueueTime;
+    }
+
+    /** How long the threads in the self test compute for. */
+    private static final long selfTestTicks = 200000;
+
+    private static final int priorityDefault =
+	PriorityScheduler.priorityDefault;
+
+    /** The weight of each priority, 25% more for each step up. */
+    private static final long[] weights =
+	new long[PriorityScheduler.priorityMaximum+1];
+
+    static {
+	for (int i=0; i<weights.length; i++)
+	    weights[i] = Math.round(1024 * Math.pow(1.25, i-priorityDefault));
+    }
+}
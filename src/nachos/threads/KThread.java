@@ -2,6 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -50,6 +53,14 @@ public class KThread {
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
+	    accounting = Config.getBoolean("KThread.accounting", false);
+	    if (accounting) {
+		liveThreads.add(this);
+		Machine.addHaltHandler(new Runnable() {
+			public void run() { printAccounting(); }
+		    });
+	    }
+
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
@@ -144,6 +155,9 @@ public class KThread {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (accounting)
+	    liveThreads.add(this);
+
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -191,6 +205,15 @@ public class KThread {
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
+	// wake every thread waiting in join()
+	if (currentThread.joinQueue != null) {
+	    KThread thread;
+	    while ((thread = currentThread.joinQueue.nextThread()) != null)
+		thread.ready();
+	}
+
+	if (currentThread.period != 0)
+	    ThreadedKernel.scheduler.withdrawRealTime(currentThread);
 
 	currentThread.status = statusFinished;
 	
@@ -218,13 +241,13 @@ public class KThread {
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
-	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().enterCritical();
 
 	currentThread.ready();
 
 	runNextThread();
 	
-	Machine.interrupt().restore(intStatus);
+	Machine.interrupt().leaveCritical();
     }
 
     /**
@@ -243,12 +266,24 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
+	    currentThread.lastStateChange = Machine.timer().getTime();
+	}
 
 	runNextThread();
     }
 
+    /**
+     * Relinquish the CPU because the current thread's time slice is up. This
+     * is the same as <tt>yield()</tt>, except that the switch is counted as a
+     * preemption rather than a voluntary switch.
+     */
+    static void preempt() {
+	preempting = true;
+	yield();
+    }
+
     /**
      * Moves this thread to the ready state and adds this to the scheduler's
      * ready queue.
@@ -258,25 +293,185 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
+
+	long time = Machine.timer().getTime();
+	if (status == statusBlocked)
+	    blockedTicks += time - lastStateChange;
+	lastStateChange = time;
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+
+	    // the idle thread gives up the processor without being preempted
+	    if (ThreadedKernel.alarm != null &&
+		(currentThread != idleThread || numReady > 1))
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
     /**
      * Waits for this thread to finish. If this thread is already finished,
-     * return immediately. This method must only be called once; the second
-     * call is not guaranteed to return. This thread must not be the current
-     * thread.
+     * return immediately. This thread must not be the current thread.
+     *
+     * <p>
+     * The joining thread sleeps on this thread's join queue until
+     * <tt>finish()</tt> wakes it, so any number of threads can join the same
+     * thread. The join queue transfers priority, so a scheduler that donates
+     * priority lets the joining threads donate to this thread.
      */
     public void join() {
 	Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 	Lib.assertTrue(this != currentThread);
 
+	Machine.interrupt().enterCritical();
+
+	if (status != statusFinished) {
+	    if (joinQueue == null) {
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		joinQueue.acquire(this);
+	    }
+
+	    joinQueue.waitForAccess(currentThread);
+	    sleep();
+	}
+
+	Machine.interrupt().leaveCritical();
+    }
+
+    /**
+     * Fork a new thread for each of the specified targets.
+     *
+     * @param	targets	the objects whose <tt>run</tt> methods the new threads
+     *			call.
+     * @return	the new threads, in the same order as their targets.
+     */
+    public static KThread[] forkAll(Runnable[] targets) {
+	KThread[] threads = new KThread[targets.length];
+
+	for (int i=0; i<targets.length; i++) {
+	    threads[i] = new KThread(targets[i]);
+	    threads[i].fork();
+	}
+
+	return threads;
+    }
+
+    /**
+     * Wait for all of the specified threads to finish. The current thread
+     * sleeps at most once for each thread that has not finished yet, and not
+     * at all for threads that have.
+     *
+     * @param	threads	the threads to wait for. The current thread must not be
+     *			one of them.
+     */
+    public static void joinAll(KThread[] threads) {
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * Make this thread a periodic real-time thread, whose work comes in jobs
+     * released every <i>period</i> ticks, each of which must complete within
+     * <i>deadline</i> ticks of its release, and takes at most <i>cost</i>
+     * ticks to run. The first job is released now. The scheduler may refuse
+     * the thread, for example if it could no longer meet every real-time
+     * thread's deadlines. This thread must be the current thread, or not yet
+     * forked.
+     *
+     * @param	period		the time between releases.
+     * @param	deadline	the time after each release by which the job
+     *				must complete. Must not exceed the period.
+     * @param	cost		the most time each job takes to run.
+     * @return	<tt>true</tt> if the scheduler admitted this thread.
+     *
+     * @see	nachos.threads.KThread#waitForNextPeriod
+     */
+    public boolean setRealTime(long period, long deadline, long cost) {
+	Lib.assertTrue(this == currentThread || status == statusNew);
+	Lib.assertTrue(cost > 0 && deadline >= cost && period >= deadline);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted =
+	    ThreadedKernel.scheduler.admitRealTime(this, period, deadline, cost);
+	if (admitted) {
+	    this.period = period;
+	    this.relativeDeadline = deadline;
+	    this.release = Machine.timer().getTime();
+	    this.deadline = release + deadline;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
+    /**
+     * Make this thread an ordinary thread again, if it is a real-time thread.
+     * This thread must be the current thread, or not yet forked.
+     */
+    public void clearRealTime() {
+	Lib.assertTrue(this == currentThread || status == statusNew);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (period != 0) {
+	    ThreadedKernel.scheduler.withdrawRealTime(this);
+	    period = 0;
+	    deadline = noDeadline;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Complete the current real-time thread's job, counting it as a deadline
+     * miss if it is late, and sleep until the next job is released. The alarm
+     * wakes the thread at the release time. If that time has already passed,
+     * the next job starts at once.
+     */
+    public static void waitForNextPeriod() {
+	Lib.assertTrue(currentThread.period != 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Machine.timer().completeJob(currentThread.deadline);
+
+	currentThread.release += currentThread.period;
+	currentThread.deadline =
+	    currentThread.release + currentThread.relativeDeadline;
+
+	long time = Machine.timer().getTime();
+	if (currentThread.release > time) {
+	    ThreadedKernel.alarm.timedWait(currentThread.release - time);
+	    sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the absolute deadline of this thread's current job.
+     *
+     * @return	the time by which the job must complete, or
+     *		<tt>Long.MAX_VALUE</tt> if this is not a real-time thread.
+     */
+    public long getDeadline() {
+	return deadline;
+    }
+
+    /**
+     * Return the number of threads on the ready queue, not counting the
+     * current thread or the idle thread.
+     *
+     * @return	the number of threads waiting to run.
+     */
+    static int numReadyThreads() {
+	return numReady;
     }
 
     /**
@@ -287,12 +482,28 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Unless <tt>KThread.idleFastForward</tt> is <tt>false</tt>, the idle
+     * thread does not spin one kernel tick at a time while no other thread is
+     * ready. Instead, it advances the simulated time straight to the next
+     * pending interrupt using <tt>Interrupt.idle()</tt>.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	final boolean fastForward =
+	    Config.getBoolean("KThread.idleFastForward", true);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (fastForward && numReady == 0)
+			Machine.interrupt().idle();
+		    else
+			KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -309,6 +520,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
@@ -336,6 +549,15 @@ public class KThread {
     private void run() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 
+	currentThread.chargeRunningTime();
+	if (this != currentThread) {
+	    if (preempting)
+		currentThread.numPreemptions++;
+	    else
+		currentThread.numVoluntarySwitches++;
+	}
+	preempting = false;
+
 	Machine.yield();
 
 	currentThread.saveState();
@@ -362,16 +584,99 @@ public class KThread {
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+
+	if (status == statusReady)
+	    readyTicks += Machine.timer().getTime() - lastStateChange;
+	lastKernelTime = Machine.timer().getKernelTime();
+	lastUserTime = Machine.timer().getUserTime();
 	
 	status = statusRunning;
 
 	if (toBeDestroyed != null) {
+	    if (accounting)
+		toBeDestroyed.retireAccounting();
 	    toBeDestroyed.tcb.destroy();
 	    toBeDestroyed.tcb = null;
 	    toBeDestroyed = null;
 	}
     }
 
+    /**
+     * Charge the time since this thread was last charged, or started running,
+     * to this thread. This thread must be the current thread.
+     */
+    private void chargeRunningTime() {
+	long kernelTime = Machine.timer().getKernelTime();
+	long userTime = Machine.timer().getUserTime();
+
+	kernelTicks += kernelTime - lastKernelTime;
+	userTicks += userTime - lastUserTime;
+	lastKernelTime = kernelTime;
+	lastUserTime = userTime;
+    }
+
+    /**
+     * Add the accounting of this finished thread to the totals of all
+     * finished threads, and forget the thread, so that accounting does not
+     * keep every thread ever created alive.
+     */
+    private void retireAccounting() {
+	Lib.assertTrue(status == statusFinished);
+
+	numFinished++;
+	finishedKernelTicks += kernelTicks;
+	finishedUserTicks += userTicks;
+	finishedReadyTicks += readyTicks;
+	finishedBlockedTicks += blockedTicks;
+	finishedVoluntarySwitches += numVoluntarySwitches;
+	finishedPreemptions += numPreemptions;
+
+	liveThreads.remove(this);
+    }
+
+    /**
+     * Print the time each thread has spent running in kernel and user mode,
+     * waiting on the ready queue, and blocked, and how many times it gave up
+     * the processor voluntarily or was preempted. Threads that have finished
+     * are printed as one line of totals. Called when the machine halts if
+     * <tt>KThread.accounting</tt> is <tt>true</tt>.
+     */
+    private static void printAccounting() {
+	long time = Machine.timer().getTime();
+
+	currentThread.chargeRunningTime();
+
+	System.out.println("Thread accounting:");
+	for (Iterator<KThread> i=liveThreads.iterator(); i.hasNext(); ) {
+	    KThread thread = i.next();
+
+	    long ready = thread.readyTicks, blocked = thread.blockedTicks;
+	    if (thread.status == statusReady)
+		ready += time - thread.lastStateChange;
+	    else if (thread.status == statusBlocked)
+		blocked += time - thread.lastStateChange;
+
+	    System.out.println("  " + thread.toString()
+			       + ": kernel " + thread.kernelTicks
+			       + ", user " + thread.userTicks
+			       + ", ready " + ready
+			       + ", blocked " + blocked
+			       + ", switches voluntary "
+			       + thread.numVoluntarySwitches
+			       + ", preempted " + thread.numPreemptions);
+	}
+
+	if (numFinished > 0)
+	    System.out.println("  " + numFinished + " finished threads"
+			       + ": kernel " + finishedKernelTicks
+			       + ", user " + finishedUserTicks
+			       + ", ready " + finishedReadyTicks
+			       + ", blocked " + finishedBlockedTicks
+			       + ", switches voluntary "
+			       + finishedVoluntarySwitches
+			       + ", preempted " + finishedPreemptions);
+    }
+
     /**
      * Prepare this thread to give up the processor. Kernel threads do not
      * need to do anything here.
@@ -397,6 +702,38 @@ public class KThread {
 	private int which;
     }
 
+    private static class FinishTest implements Runnable {
+	FinishTest(int which, int yields, int[] finished) {
+	    this.which = which;
+	    this.yields = yields;
+	    this.finished = finished;
+	}
+
+	public void run() {
+	    for (int i=0; i<yields; i++)
+		currentThread.yield();
+
+	    // finished[0] counts the threads done; the rest is their order
+	    finished[++finished[0]] = which;
+	}
+
+	private int which, yields;
+	private int[] finished;
+    }
+
+    private static class JoinTest implements Runnable {
+	JoinTest(KThread target) {
+	    this.target = target;
+	}
+
+	public void run() {
+	    target.join();
+	    Lib.assertTrue(target.status == statusFinished);
+	}
+
+	private KThread target;
+    }
+
     /**
      * Tests whether this module is working.
      */
@@ -405,6 +742,52 @@ public class KThread {
 	
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
+
+	joinTest();
+    }
+
+    /**
+     * Test <tt>join()</tt>, <tt>forkAll()</tt>, and <tt>joinAll()</tt>.
+     */
+    private static void joinTest() {
+	// several threads join a thread that is still running, and all of
+	// them wake up once it finishes
+	int[] finished = new int[2];
+	KThread target = new KThread(new FinishTest(0, 5, finished));
+	target.setName("join target").fork();
+
+	Runnable[] joiners = new Runnable[3];
+	for (int i=0; i<joiners.length; i++)
+	    joiners[i] = new JoinTest(target);
+	joinAll(forkAll(joiners));
+
+	Lib.assertTrue(target.status == statusFinished && finished[0] == 1);
+
+	// joining a thread that has finished returns at once
+	int switches = currentThread.numVoluntarySwitches;
+	target.join();
+	Lib.assertTrue(currentThread.numVoluntarySwitches == switches);
+
+	// joinAll() waits for every thread, whatever order they finish in;
+	// the later ones yield less, so they tend to finish first
+	finished = new int[5];
+	Runnable[] targets = new Runnable[4];
+	for (int i=0; i<targets.length; i++)
+	    targets[i] = new FinishTest(i, 2*(targets.length-i), finished);
+
+	KThread[] threads = forkAll(targets);
+	for (int i=0; i<threads.length; i++)
+	    Lib.assertTrue(threads[i].target == targets[i]);
+
+	joinAll(threads);
+
+	Lib.assertTrue(finished[0] == targets.length);
+	boolean[] seen = new boolean[targets.length];
+	for (int i=0; i<threads.length; i++) {
+	    Lib.assertTrue(threads[i].status == statusFinished);
+	    Lib.assertTrue(!seen[finished[i+1]]);
+	    seen[finished[i+1]] = true;
+	}
     }
 
     private static final char dbgThread = 't';
@@ -416,6 +799,8 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    private static final long noDeadline = Long.MAX_VALUE;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -431,6 +816,25 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** The threads waiting in <tt>join()</tt>, created by the first one. */
+    private ThreadQueue joinQueue = null;
+
+    /** The real-time parameters, or a zero period if not real-time. */
+    private long period = 0, relativeDeadline = 0;
+    /** The release time and absolute deadline of the current job. */
+    private long release = 0, deadline = noDeadline;
+
+    /*
+     * Accounting, printed when the machine halts if KThread.accounting is
+     * true. All times are in clock ticks.
+     */
+    private long kernelTicks = 0, userTicks = 0;
+    private long readyTicks = 0, blockedTicks = 0;
+    private int numVoluntarySwitches = 0, numPreemptions = 0;
+    /** The kernel and user times when this thread was last charged. */
+    private long lastKernelTime, lastUserTime;
+    /** The time this thread last became ready or blocked. */
+    private long lastStateChange;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -441,7 +845,25 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+
+    private static boolean accounting = false;
+    /**
+     * Every thread that has been forked and not yet destroyed, in the order
+     * they were forked, if <tt>accounting</tt> is set.
+     */
+    private static LinkedHashSet<KThread> liveThreads =
+	new LinkedHashSet<KThread>();
+    /** The accounting totals of every thread that has been destroyed. */
+    private static int numFinished = 0;
+    private static long finishedKernelTicks = 0, finishedUserTicks = 0;
+    private static long finishedReadyTicks = 0, finishedBlockedTicks = 0;
+    private static long finishedVoluntarySwitches = 0,
+	finishedPreemptions = 0;
+    /** Set by <tt>preempt()</tt> for the next call to <tt>run()</tt>. */
+    private static boolean preempting = false;
 }
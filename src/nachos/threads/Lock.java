@@ -33,7 +33,7 @@ public class Lock {
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().enterCritical();
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
@@ -47,7 +47,7 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
-	Machine.interrupt().restore(intStatus);
+	Machine.interrupt().leaveCritical();
     }
 
     /**
@@ -56,12 +56,12 @@ public class Lock {
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().enterCritical();
 
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
-	Machine.interrupt().restore(intStatus);
+	Machine.interrupt().leaveCritical();
     }
 
     /**
@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -25,6 +24,15 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the effective ticket counts of its waiting threads in a
+ * Fenwick tree, so holding a lottery, adding or removing a thread, and
+ * changing a waiting thread's tickets all take <i>O(log n)</i> time with
+ * <i>n</i> waiting threads. Ticket totals are 64-bit, so they cannot overflow
+ * however many tickets are donated. Donation itself is the same as for a
+ * priority scheduler, except that a thread's effective tickets are the sum of
+ * its own and those of the queues it holds.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +50,357 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		       priority <= ticketsMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < ticketsMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > ticketsMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Tests whether this scheduler is working. Like the priority scheduler's
+     * test, it builds queues of threads that are never forked.
+     */
+    public void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// more threads than a new queue has slots, so the tree is rebuilt
+	// while it already holds tickets
+	LotteryQueue queue = (LotteryQueue) newThreadQueue(false);
+	KThread[] threads = new KThread[12];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("lottery " + i);
+	    setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	checkLottery(queue, threads);
+
+	// each winner leaves, and the thread in the last slot takes its place
+	for (int i=0; i<4; i++) {
+	    KThread winner = queue.nextThread();
+	    for (int j=0; j<threads.length; j++) {
+		if (threads[j] == winner)
+		    threads[j] = null;
+	    }
+	}
+
+	checkLottery(queue, threads);
+
+	// donations add up past the range of an int: a holds a lock that
+	// three threads with the most tickets wait for, and b holds a lock
+	// that a waits for
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	LotteryQueue lock1 = (LotteryQueue) newThreadQueue(true);
+	LotteryQueue lock2 = (LotteryQueue) newThreadQueue(true);
+	lock1.acquire(a);
+	lock2.acquire(b);
+	lock2.waitForAccess(a);
+	for (int i=0; i<3; i++) {
+	    KThread thread = new KThread().setName("rich " + i);
+	    setPriority(thread, ticketsMaximum);
+	    lock1.waitForAccess(thread);
+	}
+
+	long donated = 3L * ticketsMaximum;
+	Lib.assertTrue(lock1.getTotalTickets() == donated);
+	Lib.assertTrue(getTickets(a) == donated+1);
+	Lib.assertTrue(getTickets(b) == donated+2);
+	Lib.assertTrue(getEffectivePriority(a) == Integer.MAX_VALUE);
+
+	// a thread holding billions of tickets all but always wins
+	LotteryQueue race = (LotteryQueue) newThreadQueue(false);
+	KThread poor = new KThread().setName("poor");
+	race.waitForAccess(poor);
+	race.waitForAccess(b);
+	for (int i=0; i<1000; i++)
+	    Lib.assertTrue(race.pickNextThread().thread == b);
+
+	// and the donation is taken back when a gives up its lock
+	lock1.nextThread();
+	Lib.assertTrue(getTickets(a) == 1 && getTickets(b) == 2);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Hold many lotteries among the waiting threads, and check that each
+     * thread wins in proportion to its tickets. <tt>threads[i]</tt> holds
+     * <tt>i+1</tt> tickets, or is <tt>null</tt> if it is no longer waiting.
+     */
+    private void checkLottery(LotteryQueue queue, KThread[] threads) {
+	long total = 0;
+	for (int i=0; i<threads.length; i++) {
+	    if (threads[i] != null)
+		total += i+1;
+	}
+	Lib.assertTrue(queue.getTotalTickets() == total);
+
+	int drawsPerTicket = 500;
+	int[] wins = new int[threads.length];
+	for (int draw=0; draw<total*drawsPerTicket; draw++) {
+	    KThread winner = queue.pickNextThread().thread;
+
+	    int i = 0;
+	    while (threads[i] != winner)
+		i++;
+	    wins[i]++;
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    int expected = (threads[i] == null) ? 0 : (i+1)*drawsPerTicket;
+	    Lib.assertTrue(Math.abs(wins[i] - expected) <= expected/5);
+	}
     }
+
+    private long getTickets(KThread thread) {
+	return ((LotteryThreadState) getThreadState(thread)).effectiveTickets;
+    }
+
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds lotteries among its waiting threads.
+     *
+     * <p>
+     * The waiting threads occupy the first slots of an array, in no
+     * particular order, and a Fenwick tree over the array holds each slot's
+     * effective tickets. A lottery draws a ticket uniformly from the total and
+     * descends the tree to the slot holding it. Removing a thread moves the
+     * thread in the last slot into its place.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, and return the winner,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if none are
+	 *		waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket = Lib.random(totalTickets);
+
+	    // find the slot whose range of tickets contains the winning one
+	    int position = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step/=2) {
+		if (position+step <= capacity && tree[position+step] <= ticket) {
+		    position += step;
+		    ticket -= tree[position];
+		}
+	    }
+
+	    Lib.assertTrue(position < size);
+	    return slots[position];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(slots[i].thread + " (" + tickets[i] + ") ");
+	    System.out.println();
+	}
+
+	/**
+	 * Return the number of tickets this queue donates to its holder,
+	 * limited to the range of an <tt>int</tt>.
+	 *
+	 * @return	the number of tickets donated to the holder.
+	 */
+	protected int getDonation() {
+	    return (int) Math.min(totalTickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return the total effective tickets of the waiting threads.
+	 *
+	 * @return	the total number of tickets.
+	 */
+	long getTotalTickets() {
+	    return totalTickets;
+	}
+
+	protected void add(ThreadState state) {
+	    if (size == capacity)
+		grow();
+
+	    state.index = size;
+	    slots[size] = state;
+	    tickets[size] = 0;
+	    size++;
+	    reposition(state);
+	}
+
+	protected void remove(ThreadState state) {
+	    int i = state.index;
+	    int last = size-1;
+
+	    setTickets(i, tickets[last]);
+	    setTickets(last, 0);
+
+	    slots[i] = slots[last];
+	    slots[i].index = i;
+	    slots[last] = null;
+	    size--;
+	    state.index = -1;
+	}
+
+	protected void reposition(ThreadState state) {
+	    setTickets(state.index,
+		       ((LotteryThreadState) state).effectiveTickets);
+	}
+
+	/**
+	 * Set the number of tickets held by the thread in the specified slot.
+	 */
+	private void setTickets(int i, long value) {
+	    long delta = value - tickets[i];
+	    if (delta == 0)
+		return;
+
+	    tickets[i] = value;
+	    totalTickets += delta;
+	    for (int j=i+1; j<=capacity; j+=(j & -j))
+		tree[j] += delta;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    capacity *= 2;
+	    slots = Arrays.copyOf(slots, capacity);
+	    tickets = Arrays.copyOf(tickets, capacity);
+
+	    tree = new long[capacity+1];
+	    for (int j=1; j<=capacity; j++) {
+		tree[j] += tickets[j-1];
+		int parent = j + (j & -j);
+		if (parent <= capacity)
+		    tree[parent] += tree[j];
+	    }
+	}
+
+	private int capacity = initialSlots;
+	private int size = 0;
+	private ThreadState[] slots = new ThreadState[capacity];
+	/** The effective tickets of the thread in each slot. */
+	private long[] tickets = new long[capacity];
+	/** The Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+	private long[] tree = new long[capacity+1];
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. The thread's
+     * priority is its number of tickets.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread, limited to
+	 * the range of an <tt>int</tt>.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Recompute the effective tickets of the associated thread: its own
+	 * tickets plus the total tickets of the queues it holds.
+	 *
+	 * @return	<tt>true</tt> if the effective tickets changed.
+	 */
+	protected boolean recomputeEffectivePriority() {
+	    long effective = priority;
+	    for (Iterator<PriorityQueue> i=resources.iterator(); i.hasNext(); )
+		effective += ((LotteryQueue) i.next()).getTotalTickets();
+
+	    if (effective == effectiveTickets)
+		return false;
+
+	    effectiveTickets = effective;
+	    return true;
+	}
+
+	/**
+	 * The effective tickets of the associated thread. This has no
+	 * initializer, because the superclass constructor already sets it.
+	 */
+	protected long effectiveTickets;
+    }
+
+    private static final int initialSlots = 8;
 }
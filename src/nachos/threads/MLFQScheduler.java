@@ -0,0 +1,360 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Each thread is at one of several
+ * levels, and each thread queue keeps a FIFO list per level. The next thread
+ * to be dequeued is the one that has been waiting longest at the highest
+ * (lowest-numbered) level with any threads waiting.
+ *
+ * <p>
+ * A thread's level changes with the way it uses the processor:
+ *
+ * <ul>
+ * <li>Threads start at level 0.
+ * <li>A thread that runs for its level's whole quantum, across however many
+ * time slices, is moved down a level, and its quantum starts over. The
+ * quantum doubles with each level.
+ * <li>A thread that blocks, for example on a <tt>SynchConsole</tt> or in the
+ * <tt>StubFileSystem</tt>, is moved up a level when it is woken.
+ * <li>Periodically, every thread is moved back to level 0, so that threads at
+ * the bottom cannot starve.
+ * </ul>
+ *
+ * <p>
+ * The alarm consults the scheduler on every timer interrupt. The current
+ * thread is preempted when its quantum runs out, or when a thread woken at a
+ * higher level is waiting, so interactive threads run promptly while threads
+ * that compute for a long time share what is left.
+ *
+ * <p>
+ * The number of levels, the quantum at level 0, and the interval between
+ * boosts, in ticks, are set by <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt>, and <tt>MLFQScheduler.boostInterval</tt>.
+ * The scheduler does not donate priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100*Stats.TimerTicks);
+
+	Lib.assertTrue(numLevels > 0 && quantum > 0 && boostInterval > 0);
+
+	numWoken = new int[numLevels];
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not donate
+     *					priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Charge the current thread for the time it has run, and decide whether
+     * it should be preempted: when it used up its quantum, which also moves
+     * it down a level, or when a woken thread at a higher level is waiting.
+     * Also starts a boost when one is due.
+     *
+     * @return	<tt>true</tt> if the current thread should be preempted.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = time + boostInterval;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.charge(time);
+
+	if (state.used >= (long) quantum << state.level) {
+	    if (state.level < numLevels-1)
+		state.level++;
+	    state.used = 0;
+	    return true;
+	}
+
+	for (int level=0; level<state.level; level++) {
+	    if (numWoken[level] > 0)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Tests whether this scheduler is working. Two threads that never block
+     * share the processor. Each must be moved down one level at a time to the
+     * bottom level, and then back to level 0 by the next boost.
+     */
+    public void selfTest() {
+	final int[] numDone = new int[1];
+
+	Runnable hog = new Runnable() {
+		public void run() {
+		    hogTest();
+
+		    // a thread running alone is never preempted, so never moved
+		    // down, so keep the other one company until it is done
+		    numDone[0]++;
+		    while (numDone[0] < 2) {
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+		    }
+		}
+	    };
+
+	KThread.joinAll(KThread.forkAll(new Runnable[] { hog, hog }));
+    }
+
+    private void hogTest() {
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	int level = state.level;
+	long epoch = state.epoch;
+	Machine.interrupt().restore(intStatus);
+
+	// a boost may come while the thread is still moving down, in which
+	// case it starts over from level 0
+	while (level < numLevels-1) {
+	    intStatus = Machine.interrupt().disable();
+	    if (state.level != level) {
+		Lib.assertTrue(state.level == level+1 ||
+			       (state.level == 0 && state.epoch != epoch));
+		level = state.level;
+		epoch = state.epoch;
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	// the next boost moves the thread to level 0 once it gives up the
+	// processor, and it cannot have used up a quantum since
+	while (true) {
+	    intStatus = Machine.interrupt().disable();
+	    boolean boosted = (state.epoch != epoch);
+	    if (boosted)
+		Lib.assertTrue(state.level == 0);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (boosted)
+		break;
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A thread queue with a FIFO list per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    levels = new ArrayList<LinkedList<ThreadState>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<ThreadState>());
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. A thread other
+	 * than the current one has just been woken (or forked), so it is moved
+	 * up a level first.
+	 *
+	 * @param	thread	the thread to add.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    ThreadState state = getThreadState(thread);
+	    state.refresh();
+
+	    if (thread == KThread.currentThread()) {
+		state.charge(Machine.timer().getTime());
+	    }
+	    else {
+		if (state.level > 0)
+		    state.level--;
+		state.used = 0;
+		state.woken = true;
+		numWoken[state.level]++;
+	    }
+
+	    levels.get(state.level).add(state);
+	}
+
+	/**
+	 * Remove the first thread from the highest level with any waiting
+	 * threads.
+	 *
+	 * @return	the removed thread, or <tt>null</tt> if none are waiting.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (levels.get(i).isEmpty())
+		    continue;
+
+		ThreadState state = levels.get(i).removeFirst();
+		if (state.woken) {
+		    numWoken[i]--;
+		    state.woken = false;
+		}
+
+		state.lastCharged = Machine.timer().getTime();
+		return state.thread;
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * Does nothing, since this scheduler does not donate priority.
+	 *
+	 * @param	thread	the thread that acquired access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print(i + ":");
+		for (Iterator<ThreadState> j=levels.get(i).iterator();
+		     j.hasNext(); )
+		    System.out.print(" " + j.next().thread);
+		System.out.print(" ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * If a boost has started since this queue was last used, move all of
+	 * its threads to level 0, keeping them in order of level.
+	 */
+	private void boost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    for (int i=1; i<numLevels; i++) {
+		for (Iterator<ThreadState> j=levels.get(i).iterator();
+		     j.hasNext(); ) {
+		    ThreadState state = j.next();
+		    if (state.woken) {
+			numWoken[i]--;
+			numWoken[0]++;
+		    }
+		    state.level = 0;
+		    state.used = 0;
+		    state.epoch = boostEpoch;
+		}
+
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	}
+
+	private ArrayList<LinkedList<ThreadState>> levels;
+	private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Charge the thread for the time it ran since it was last charged.
+	 */
+	void charge(long time) {
+	    used += time - lastCharged;
+	    lastCharged = time;
+	}
+
+	/**
+	 * If a boost has started since this thread was last looked at, move it
+	 * to level 0. Threads waiting in a queue are instead moved by the
+	 * queue.
+	 */
+	void refresh() {
+	    if (epoch != boostEpoch) {
+		level = 0;
+		used = 0;
+		epoch = boostEpoch;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The thread's level. */
+	int level = 0;
+	/** The ticks the thread has run at its level. */
+	long used = 0;
+	/** The time up to which the thread has been charged. */
+	long lastCharged = 0;
+	/** The boost the thread's level is up to date with. */
+	long epoch = boostEpoch;
+	/**
+	 * <tt>true</tt> if the thread is waiting after being woken, and so
+	 * is counted in <tt>numWoken</tt>.
+	 */
+	boolean woken = false;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+
+    /** The number of woken threads waiting at each level. */
+    private int[] numWoken;
+
+    private long boostEpoch = 0;
+    private long nextBoost;
+}
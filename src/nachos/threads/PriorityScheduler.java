@@ -2,7 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -96,6 +97,82 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Tests whether this scheduler is working. The test builds queues of
+     * threads that are never forked, so it only checks the order in which
+     * the queues give up their threads and the priorities they donate.
+     */
+    public void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// threads of equal priority are dequeued in the order they arrived,
+	// after any thread of higher priority
+	ThreadQueue queue = newThreadQueue(false);
+	KThread[] threads = new KThread[5];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("fifo " + i);
+	    setPriority(threads[i], (i == 3) ? 4 : 2);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	Lib.assertTrue(queue.nextThread() == threads[3]);
+	for (int i=0; i<threads.length; i++) {
+	    if (i != 3)
+		Lib.assertTrue(queue.nextThread() == threads[i]);
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// a donation passes down a chain of locks: c waits for a lock held
+	// by b, which waits for a lock held by a
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	setPriority(c, 6);
+
+	ThreadQueue lock1 = newThreadQueue(true);
+	ThreadQueue lock2 = newThreadQueue(true);
+	lock1.acquire(a);
+	lock2.acquire(b);
+	lock1.waitForAccess(b);
+	lock2.waitForAccess(c);
+
+	Lib.assertTrue(getEffectivePriority(a) == 6 &&
+		       getEffectivePriority(b) == 6);
+
+	setPriority(c, 4);
+	Lib.assertTrue(getEffectivePriority(a) == 4 &&
+		       getEffectivePriority(b) == 4);
+
+	// and is taken back when each lock is released
+	Lib.assertTrue(lock1.nextThread() == b);
+	Lib.assertTrue(getEffectivePriority(a) == priorityDefault &&
+		       getEffectivePriority(b) == 4);
+
+	Lib.assertTrue(lock2.nextThread() == c);
+	Lib.assertTrue(getEffectivePriority(b) == priorityDefault &&
+		       getEffectivePriority(c) == 4);
+
+	// changing the priority of a waiting thread moves it in its queue
+	queue = newThreadQueue(false);
+	for (int i=0; i<threads.length; i++) {
+	    setPriority(threads[i], 2);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	setPriority(threads[4], 5);
+	setPriority(threads[0], 1);
+	setPriority(threads[2], 3);
+
+	Lib.assertTrue(queue.nextThread() == threads[4]);
+	Lib.assertTrue(queue.nextThread() == threads[2]);
+	Lib.assertTrue(queue.nextThread() == threads[1]);
+	Lib.assertTrue(queue.nextThread() == threads[3]);
+	Lib.assertTrue(queue.nextThread() == threads[0]);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -124,6 +201,14 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * The waiting threads are kept in a binary max-heap ordered by effective
+     * priority, and then by the order in which they started waiting, so
+     * <tt>nextThread()</tt> and repositioning a thread whose effective
+     * priority changed both take <i>O(log n)</i> time with <i>n</i> waiting
+     * threads, and <tt>pickNextThread()</tt> takes constant time. Each
+     * thread's state records its position in the heap.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +227,16 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		release();
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +247,127 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return (size > 0) ? heap[0] : null;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    ThreadState[] waiters = new ThreadState[size];
+	    System.arraycopy(heap, 0, waiters, 0, size);
+	    Arrays.sort(waiters, new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			return a.before(b) ? -1 : (b.before(a) ? 1 : 0);
+		    }
+		});
+
+	    for (int i=0; i<waiters.length; i++)
+		System.out.print(waiters[i].thread + " (" +
+				 waiters[i].effectivePriority + ") ");
+	    System.out.println();
+	}
+
+	/**
+	 * Return the priority this queue donates to its holder: the highest
+	 * effective priority among its waiting threads, or
+	 * <tt>priorityMinimum</tt> if none are waiting.
+	 *
+	 * @return	the priority donated to the holder.
+	 */
+	protected int getDonation() {
+	    return (size > 0) ? heap[0].effectivePriority : priorityMinimum;
+	}
+
+	/**
+	 * Give up this queue's holder, if any, so that it no longer receives
+	 * this queue's donation.
+	 */
+	void release() {
+	    ThreadState oldHolder = holder;
+	    if (oldHolder == null)
+		return;
+
+	    holder = null;
+	    if (transferPriority) {
+		oldHolder.resources.remove(this);
+		oldHolder.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Add a thread to the heap.
+	 */
+	protected void add(ThreadState state) {
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    state.enqueueTime = numEnqueued++;
+	    state.index = size;
+	    heap[size++] = state;
+	    siftUp(state.index);
+	}
+
+	/**
+	 * Remove a thread from the heap.
+	 */
+	protected void remove(ThreadState state) {
+	    int i = state.index;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.index = -1;
+
+	    if (last != state) {
+		heap[i] = last;
+		last.index = i;
+		reposition(last);
+	    }
+	}
+
+	/**
+	 * Move a thread whose effective priority changed to its new position
+	 * in the heap.
+	 */
+	protected void reposition(ThreadState state) {
+	    siftDown(state.index);
+	    siftUp(state.index);
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].index = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+
+	    while (true) {
+		int child = 2*i+1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].index = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
 	}
 
 	/**
@@ -168,6 +375,13 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if it still holds it. */
+	ThreadState holder = null;
+
+	private ThreadState[] heap = new ThreadState[initialWaiters];
+	private int size = 0;
+	private long numEnqueued = 0;
     }
 
     /**
@@ -175,6 +389,16 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Whenever something it depends on
+     * changes (the thread's own priority, a thread joining or leaving a
+     * priority-transferring queue the thread holds, or the thread giving up
+     * such a queue), it is recomputed from the thread's priority and the
+     * donation of each queue it holds, and if it changed, the thread is
+     * repositioned in the queue it is waiting on and that queue's holder is
+     * updated in turn. So a donation walks the chain of holders only as far
+     * as it changes anything, and never scans a queue's waiters.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -205,8 +429,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +443,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +459,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.updateEffectivePriority();
 	}
 
 	/**
@@ -250,12 +479,97 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (this.waitQueue == waitQueue)
+		this.waitQueue = null;
+
+	    waitQueue.release();
+	    waitQueue.holder = this;
+
+	    if (waitQueue.transferPriority) {
+		resources.add(waitQueue);
+		updateEffectivePriority();
+	    }
 	}	
 
+	/**
+	 * Recompute the effective priority of the associated thread, and if it
+	 * changed, pass the change on to the queue it is waiting on.
+	 */
+	void updateEffectivePriority() {
+	    long walk = ++numWalks;
+	    ThreadState state = this;
+
+	    // walk up the chain of holders for as long as something changes,
+	    // and stop at any thread this walk already updated: the chain has
+	    // run into a cycle of deadlocked threads, and going around it again
+	    // would never end for a scheduler whose donations add up
+	    while (state.lastWalk != walk &&
+		   state.recomputeEffectivePriority()) {
+		state.lastWalk = walk;
+
+		PriorityQueue queue = state.waitQueue;
+		if (queue == null)
+		    return;
+
+		queue.reposition(state);
+		if (!queue.transferPriority || queue.holder == null)
+		    return;
+
+		state = queue.holder;
+	    }
+	}
+
+	/**
+	 * Recompute the cached effective priority of the associated thread from
+	 * its priority and the donations of the queues it holds.
+	 *
+	 * @return	<tt>true</tt> if the effective priority changed.
+	 */
+	protected boolean recomputeEffectivePriority() {
+	    int effective = priority;
+	    for (Iterator<PriorityQueue> i=resources.iterator(); i.hasNext(); )
+		effective = Math.max(effective, i.next().getDonation());
+
+	    if (effective == effectivePriority)
+		return false;
+
+	    effectivePriority = effective;
+	    return true;
+	}
+
+	/**
+	 * Tests whether the associated thread should be dequeued before the
+	 * specified thread: it has a higher effective priority, or the same
+	 * one and has been waiting longer.
+	 */
+	boolean before(ThreadState state) {
+	    return effectivePriority > state.effectivePriority ||
+		(effectivePriority == state.effectivePriority &&
+		 enqueueTime < state.enqueueTime);
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitQueue = null;
+	/** The priority-transferring queues the associated thread holds. */
+	HashSet<PriorityQueue> resources = new HashSet<PriorityQueue>();
+	/** The position of the associated thread in its queue's heap. */
+	int index = -1;
+	/** When the associated thread started waiting on its queue. */
+	long enqueueTime;
+	/** The last call to <tt>updateEffectivePriority()</tt> to update
+	 * the associated thread. */
+	long lastWalk = 0;
     }
+
+    /** The number of calls to <tt>updateEffectivePriority()</tt>. */
+    private long numWalks = 0;
+
+    private static final int initialWaiters = 8;
 }
@@ -154,4 +154,55 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm on each timer interrupt, with interrupts disabled,
+     * to decide whether the current thread's time slice is up. By default,
+     * every timer interrupt ends the slice, so the current thread yields to
+     * whatever thread is waiting.
+     *
+     * @return	<tt>true</tt> if the current thread should be preempted.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Decide whether to admit the specified thread as a periodic real-time
+     * thread with the specified parameters, replacing any it had before.
+     * Called by <tt>KThread.setRealTime()</tt> with interrupts disabled. A
+     * scheduler without real-time support admits every thread, but makes no
+     * promise that it will meet its deadlines.
+     *
+     * @param	thread		the thread to admit.
+     * @param	period		the time between releases of the thread's jobs.
+     * @param	deadline	the time after its release by which each job
+     *				must complete.
+     * @param	cost		the most time each job takes to run.
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+				 long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
+    /**
+     * Forget that the specified thread is a real-time thread. Called by
+     * <tt>KThread</tt> with interrupts disabled, when the thread stops being
+     * a real-time thread or finishes.
+     *
+     * @param	thread	the thread that is no longer a real-time thread.
+     */
+    public void withdrawRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Tests whether this scheduler is working. Called by
+     * <tt>ThreadedKernel.selfTest()</tt> on the kernel's scheduler. By
+     * default, does nothing.
+     */
+    public void selfTest() {
+    }
 }
@@ -35,7 +35,7 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
-	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().enterCritical();
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
@@ -45,7 +45,7 @@ public class Semaphore {
 	    value--;
 	}
 
-	Machine.interrupt().restore(intStatus);
+	Machine.interrupt().leaveCritical();
     }
 
     /**
@@ -53,7 +53,7 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
-	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().enterCritical();
 
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
@@ -63,7 +63,7 @@ public class Semaphore {
 	    value++;
 	}
 	
-	Machine.interrupt().restore(intStatus);
+	Machine.interrupt().leaveCritical();
     }
 
     private static class PingTest implements Runnable {
@@ -16,6 +16,11 @@ public class ThreadedKernel extends Kernel {
     /**
      * Initialize this kernel. Creates a scheduler, the first thread, and an
      * alarm, and enables interrupts. Creates a file system if necessary.   
+     *
+     * <p>
+     * If <tt>ThreadedKernel.tickless</tt> is <tt>true</tt>, the alarm only
+     * arms the timer when it needs an interrupt, instead of letting it
+     * interrupt periodically.
      */
     public void initialize(String[] args) {
 	// set scheduler
@@ -34,14 +39,15 @@ public class ThreadedKernel extends Kernel {
 	// start threading
 	new KThread(null);
 
-	alarm  = new Alarm();
+	alarm  = new Alarm(Config.getBoolean("ThreadedKernel.tickless", false));
 
 	Machine.interrupt().enable();
     }
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the
+     * scheduler. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -49,6 +55,7 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	scheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -4,7 +4,10 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -27,6 +30,17 @@ public class UserProcess {
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
 	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+
+	registerSyscall(syscallHalt, new Syscall() {
+		public int handle(SyscallArguments args) {
+		    return handleHalt();
+		}
+	    });
+	registerSyscall(syscallMulticall, new Syscall() {
+		public int handle(SyscallArguments args) {
+		    return handleMulticall(args.getInt(0), args.getInt(1));
+		}
+	    });
     }
     
     /**
@@ -42,15 +56,22 @@ public class UserProcess {
 
     /**
      * Execute the specified program with the specified arguments. Attempts to
-     * load the program, and then forks a thread to run it.
+     * load the program, and then forks a thread to run it. If the machine is
+     * resuming from a snapshot, the program is instead restored from it, and
+     * continues from where the snapshot was written.
      *
      * @param	name	the name of the file containing the executable.
      * @param	args	the arguments to pass to the executable.
      * @return	<tt>true</tt> if the program was successfully executed.
      */
     public boolean execute(String name, String[] args) {
-	if (!load(name, args))
+	if (Machine.processor().resumeProgram(programState)) {
+	    Lib.assertTrue(name.equals(programName),
+			   "snapshot is of " + programName + ", not " + name);
+	}
+	else if (!load(name, args)) {
 	    return false;
+	}
 	
 	new UThread(this).setName(name).fork();
 
@@ -70,14 +91,80 @@ public class UserProcess {
      */
     public void restoreState() {
 	Machine.processor().setPageTable(pageTable);
+	Machine.processor().setProgramState(programState);
+    }
+
+    /**
+     * Save the state of this process that a snapshot of the machine must
+     * hold for the program to be resumed from it: the program's name, its
+     * layout, and its page table. Subclasses that keep more state, such as
+     * open files or a frame allocator, should save that too.
+     *
+     * @param	out	the stream to write the state to.
+     */
+    protected void saveProgram(DataOutputStream out) throws IOException {
+	out.writeUTF(programName);
+	out.writeInt(numPages);
+	out.writeInt(initialPC);
+	out.writeInt(initialSP);
+	out.writeInt(argc);
+	out.writeInt(argv);
+
+	out.writeInt(pageTable.length);
+	for (int i=0; i<pageTable.length; i++) {
+	    TranslationEntry entry = pageTable[i];
+	    out.writeBoolean(entry != null);
+	    if (entry != null) {
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeBoolean(entry.valid);
+		out.writeBoolean(entry.readOnly);
+		out.writeBoolean(entry.used);
+		out.writeBoolean(entry.dirty);
+	    }
+	}
+    }
+
+    /**
+     * Restore the state saved by <tt>saveProgram()</tt>, in place of loading
+     * the program. Reopens the executable, but does not load its sections,
+     * since physical memory has already been restored.
+     *
+     * @param	in	the stream to read the state from.
+     */
+    protected void restoreProgram(DataInputStream in) throws IOException {
+	programName = in.readUTF();
+	numPages = in.readInt();
+	initialPC = in.readInt();
+	initialSP = in.readInt();
+	argc = in.readInt();
+	argv = in.readInt();
+
+	pageTable = new TranslationEntry[in.readInt()];
+	for (int i=0; i<pageTable.length; i++) {
+	    if (in.readBoolean()) {
+		pageTable[i] = new TranslationEntry(in.readInt(), in.readInt(),
+						    in.readBoolean(),
+						    in.readBoolean(),
+						    in.readBoolean(),
+						    in.readBoolean());
+	    }
+	}
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(programName,
+							     false);
+	if (executable == null)
+	    throw new IOException("cannot open " + programName);
+
+	coff = new Coff(executable);
     }
 
     /**
-     * Read a null-terminated string from this process's virtual memory. Read
-     * at most <tt>maxLength + 1</tt> bytes from the specified address, search
-     * for the null terminator, and convert it to a <tt>java.lang.String</tt>,
-     * without including the null terminator. If no null terminator is found,
-     * returns <tt>null</tt>.
+     * Read a null-terminated string from this process's virtual memory.
+     * Search at most <tt>maxLength + 1</tt> bytes from the specified address
+     * for the null terminator, in place, and convert the bytes before it to a
+     * <tt>java.lang.String</tt>. If no null terminator is found, returns
+     * <tt>null</tt>.
      *
      * @param	vaddr	the starting virtual address of the null-terminated
      *			string.
@@ -89,16 +176,15 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	int length = new MemoryCursor(vaddr).find((byte) 0, maxLength+1);
+	if (length == -1)
+	    return null;
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	byte[] bytes = new byte[length];
+	if (readVirtualMemory(vaddr, bytes) != length)
+	    return null;
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
-	}
-
-	return null;
+	return new String(bytes);
     }
 
     /**
@@ -129,18 +215,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
 				 int length) {
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return new MemoryCursor(vaddr).read(data, offset, length);
     }
 
     /**
@@ -172,18 +247,168 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				  int length) {
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+	return new MemoryCursor(vaddr).write(data, offset, length);
+    }
 
-	byte[] memory = Machine.processor().getMemory();
+    /**
+     * Return the translation for the specified virtual page of this process.
+     * The default looks the page up in <tt>pageTable</tt>; a subclass that
+     * keeps its mappings elsewhere (for example, only in the TLB) should
+     * override this method so the virtual memory transfer methods follow
+     * them.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the translation entry for that page, or <tt>null</tt> if it is
+     *		not mapped.
+     */
+    protected TranslationEntry lookupPage(int vpn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Translate the page containing <i>vaddr</i> for an access by the kernel,
+     * and mark it used, and dirty if <i>writing</i>.
+     *
+     * @param	vaddr	the virtual address being accessed.
+     * @param	writing	<tt>true</tt> if the access is a write.
+     * @return	the translation entry, or <tt>null</tt> if the page is not
+     *		mapped, or is read-only and <i>writing</i> is <tt>true</tt>.
+     */
+    private TranslationEntry mapPage(int vaddr, boolean writing) {
+	if (vaddr < 0)
+	    return null;
 	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	TranslationEntry entry = lookupPage(Processor.pageFromAddress(vaddr));
+	if (entry == null || !entry.valid || (writing && entry.readOnly) ||
+	    entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+	    return null;
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry;
+    }
+
+    /**
+     * A position in this process's virtual memory, used to copy data between
+     * it and the kernel. Each transfer walks the process's mappings one
+     * virtual page at a time, copies all of that page it needs in one piece,
+     * and stops at the first page that is not mapped, or that is read-only
+     * when writing. Transfers advance the cursor past the bytes copied.
+     */
+    public class MemoryCursor {
+	/**
+	 * Allocate a new cursor.
+	 *
+	 * @param	vaddr	the virtual address to start at.
+	 */
+	public MemoryCursor(int vaddr) {
+	    this.vaddr = vaddr;
+	}
+
+	/**
+	 * Return the virtual address of the next byte to be transferred.
+	 *
+	 * @return	the cursor's virtual address.
+	 */
+	public int getAddress() {
+	    return vaddr;
+	}
+
+	/**
+	 * Transfer data from virtual memory to the specified array.
+	 *
+	 * @param	data	the array where the data will be stored.
+	 * @param	offset	the first byte to write in the array.
+	 * @param	length	the number of bytes to transfer.
+	 * @return	the number of bytes successfully transferred.
+	 */
+	public int read(byte[] data, int offset, int length) {
+	    return transfer(data, offset, length, false);
+	}
+
+	/**
+	 * Transfer data from the specified array to virtual memory.
+	 *
+	 * @param	data	the array containing the data to transfer.
+	 * @param	offset	the first byte to transfer from the array.
+	 * @param	length	the number of bytes to transfer.
+	 * @return	the number of bytes successfully transferred.
+	 */
+	public int write(byte[] data, int offset, int length) {
+	    return transfer(data, offset, length, true);
+	}
+
+	/**
+	 * Search virtual memory for a byte, starting at the cursor, without
+	 * copying anything or moving the cursor.
+	 *
+	 * @param	value	the byte to search for.
+	 * @param	limit	the maximum number of bytes to search.
+	 * @return	the distance from the cursor to the first matching byte,
+	 *		or -1 if none was found in <i>limit</i> bytes or before
+	 *		the first byte that could not be read.
+	 */
+	public int find(byte value, int limit) {
+	    Processor processor = Machine.processor();
+	    int address = vaddr;
+	    int searched = 0;
+
+	    while (searched < limit) {
+		TranslationEntry entry = mapPage(address, false);
+		if (entry == null)
+		    break;
+
+		int pageOffset = Processor.offsetFromAddress(address);
+		int count = Math.min(limit-searched, pageSize-pageOffset);
+
+		int found = processor.findInFrame(entry.ppn, pageOffset, count,
+						  value);
+		if (found != -1)
+		    return searched + (found-pageOffset);
+
+		searched += count;
+		address += count;
+	    }
+
+	    return -1;
+	}
+
+	private int transfer(byte[] data, int offset, int length,
+			     boolean writing) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= data.length);
+
+	    Processor processor = Machine.processor();
+	    int amount = 0;
+
+	    while (amount < length) {
+		TranslationEntry entry = mapPage(vaddr, writing);
+		if (entry == null)
+		    break;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+		int pageOffset = Processor.offsetFromAddress(vaddr);
+		int count = Math.min(length-amount, pageSize-pageOffset);
+
+		if (writing)
+		    processor.writeFrame(entry.ppn, pageOffset,
+					 data, offset+amount, count);
+		else
+		    processor.readFrame(entry.ppn, pageOffset,
+					data, offset+amount, count);
+
+		amount += count;
+		vaddr += count;
+	    }
 
-	return amount;
+	    return amount;
+	}
+
+	private int vaddr;
     }
 
     /**
@@ -205,6 +430,8 @@ public class UserProcess {
 	    return false;
 	}
 
+	programName = name;
+
 	try {
 	    coff = new Coff(executable);
 	}
@@ -347,6 +574,127 @@ public class UserProcess {
     }
 
 
+    /**
+     * Handle the multicall() system call: make each of the system calls
+     * described by an array in user memory, storing each result back in its
+     * descriptor, all in one trap. A descriptor is six words: the syscall
+     * number, four arguments, and the result.
+     *
+     * @param	callsAddr	the virtual address of the descriptor array.
+     * @param	count		the number of descriptors.
+     * @return	the number of calls made, or -1 if the array could not be
+     *		read.
+     */
+    private int handleMulticall(int callsAddr, int count) {
+	if (count < 0 || count > maxMulticalls)
+	    return -1;
+
+	byte[] calls = new byte[count*multicallEntrySize];
+	if (readVirtualMemory(callsAddr, calls) != calls.length)
+	    return -1;
+
+	byte[] result = new byte[4];
+	
+	for (int i=0; i<count; i++) {
+	    int entry = i*multicallEntrySize;
+	    int syscall = Lib.bytesToInt(calls, entry);
+	    int value;
+
+	    // a multicall cannot contain another
+	    if (syscall == syscallMulticall)
+		value = -1;
+	    else
+		value = handleSyscall(syscall,
+				      Lib.bytesToInt(calls, entry+4),
+				      Lib.bytesToInt(calls, entry+8),
+				      Lib.bytesToInt(calls, entry+12),
+				      Lib.bytesToInt(calls, entry+16));
+
+	    // store each result as soon as it is known, in case a later call
+	    // reads it
+	    Lib.bytesFromInt(result, 0, value);
+	    writeVirtualMemory(callsAddr+entry+20, result);
+	}
+
+	return count;
+    }
+
+    /**
+     * Add a system call to this process's syscall table, replacing any
+     * handler already registered for that number. Subclasses register the
+     * syscalls they implement from their constructors.
+     *
+     * @param	number	the syscall number, as passed in <tt>$v0</tt>.
+     * @param	handler	the syscall's implementation.
+     */
+    protected void registerSyscall(int number, Syscall handler) {
+	Lib.assertTrue(number >= 0);
+
+	if (number >= syscallTable.length) {
+	    Syscall[] table = new Syscall[number+1];
+	    System.arraycopy(syscallTable, 0, table, 0, syscallTable.length);
+	    syscallTable = table;
+	}
+
+	syscallTable[number] = handler;
+    }
+
+    /**
+     * A system call implementation, registered with
+     * <tt>registerSyscall()</tt>.
+     */
+    protected interface Syscall {
+	/**
+	 * Perform the system call.
+	 *
+	 * @param	args	the arguments passed by the user program.
+	 * @return	the value to be returned to the user.
+	 */
+	public int handle(SyscallArguments args);
+    }
+
+    /**
+     * The arguments of a system call, converted to the type each syscall
+     * expects as it asks for them. Each process passes the same object to
+     * every syscall it makes, so a handler must read its arguments before
+     * making another syscall itself.
+     */
+    protected class SyscallArguments {
+	/**
+	 * Replace the arguments with those of the next syscall.
+	 */
+	void set(int a0, int a1, int a2, int a3) {
+	    args[0] = a0;
+	    args[1] = a1;
+	    args[2] = a2;
+	    args[3] = a3;
+	}
+
+	/**
+	 * Return an integer argument.
+	 *
+	 * @param	i	the argument number, from 0 to 3.
+	 * @return	the argument.
+	 */
+	public int getInt(int i) {
+	    return args[i];
+	}
+
+	/**
+	 * Return a string argument, read from the null-terminated string the
+	 * argument points to in virtual memory.
+	 *
+	 * @param	i	the argument number, from 0 to 3.
+	 * @return	the string, or <tt>null</tt> if it could not be read or
+	 *		was longer than <tt>maxSyscallStringLength</tt>.
+	 */
+	public String getString(int i) {
+	    return readVirtualMemoryString(args[i], maxSyscallStringLength);
+	}
+
+	private int[] args = new int[4];
+    }
+
     private static final int
         syscallHalt = 0,
 	syscallExit = 1,
@@ -357,7 +705,16 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMulticall = 13;
+
+    /** The most calls one multicall() can make. */
+    private static final int maxMulticalls = 256;
+    /** The size of one multicall() descriptor, in bytes. */
+    private static final int multicallEntrySize = 24;
+    /** The longest string argument a syscall will read, not counting the
+     * null terminator. */
+    protected static final int maxSyscallStringLength = 256;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,7 +735,13 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  multicall(struct syscallRequest *calls,
+     *						 int count);</tt></td></tr>
      * </table>
+     *
+     * <p>
+     * The syscall is looked up in the table filled by
+     * <tt>registerSyscall()</tt>.
      * 
      * @param	syscall	the syscall number.
      * @param	a0	the first syscall argument.
@@ -388,15 +751,14 @@ public class UserProcess {
      * @return	the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-	switch (syscall) {
-	case syscallHalt:
-	    return handleHalt();
-
-
-	default:
-	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
+	if (syscall >= 0 && syscall < syscallTable.length &&
+	    syscallTable[syscall] != null) {
+	    syscallArguments.set(a0, a1, a2, a3);
+	    return syscallTable[syscall].handle(syscallArguments);
 	}
+
+	Lib.debug(dbgProcess, "Unknown syscall " + syscall);
+	Lib.assertNotReached("Unknown system call!");
 	return 0;
     }
 
@@ -432,6 +794,24 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file containing the program. */
+    protected String programName;
+
+    /** Saves this process's state with a snapshot, and restores it. */
+    private Processor.ProgramState programState =
+	new Processor.ProgramState() {
+	    public void save(DataOutputStream out) throws IOException {
+		saveProgram(out);
+	    }
+	    public void restore(DataInputStream in) throws IOException {
+		restoreProgram(in);
+	    }
+	};
+
+    /** This process's syscalls, indexed by syscall number. */
+    private Syscall[] syscallTable = new Syscall[syscallMulticall+1];
+    /** The arguments passed to each syscall, reused for every trap. */
+    private SyscallArguments syscallArguments = new SyscallArguments();
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;